@@ -6,6 +6,7 @@ package org.nrg.dcm.browse;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -160,6 +161,9 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
     public static final String OPEN_DIR_PREF = "choose.dir";
     public static final String SCRIPT_DIR_PREF = "script.dir";
     public static final String MAX_LEN_PREF = "value.maxlen";
+    public static final String EXPORT_THREADS_PREF = "export.threads";
+    public static final String SEND_ASSOCIATIONS_PREF = "send.associations";
+    public static final String VIEW_CACHE_PREF = "view.cache.mb";
     public static final String UID_ROOT_PREF = "uid.root";
     public static final String LAST_UID_FRAG_PREF = "list.uid.frag";
     private static final Preferences prefs = Preferences.userNodeForPackage(DicomBrowser.class);
@@ -272,6 +276,12 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
     // this covers most field types
     static private final int defaultMaxValueLen = 64;
 
+    // default number of threads reading, modifying, and writing files on export;
+    // each thread may hold several decoded objects, so more is opt-in
+    // (DicomBrowser.export.threads), as for DicomRemap's parallelism option
+    static final int DEFAULT_EXPORT_THREADS = 1;
+    static final int DEFAULT_VIEW_CACHE_MB = 256;
+
     static private final int[] columnWidths = { 120, 160, 80, 380 };
 
     private final JFrame frame;
@@ -292,6 +302,9 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
 
         treeModel = new FileSetTreeModel(frame, fs);
         tableModel = new FileSetTableModel(this, fs, executor);
+        tableModel.setValueTruncation(prefs.getInt(MAX_LEN_PREF, defaultMaxValueLen), rsrcb.getString(TRUNCATE_FORMAT));
+        tableModel.setExportThreads(prefs.getInt(EXPORT_THREADS_PREF, DEFAULT_EXPORT_THREADS));
+        tableModel.setSendAssociations(prefs.getInt(SEND_ASSOCIATIONS_PREF, 1));
 
         tree = new JTree(treeModel);
         tree.setRootVisible(false);
@@ -303,6 +316,11 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
         treeView.setMinimumSize(new Dimension(200,200));
         treeView.setPreferredSize(new Dimension(200,200));
 
+        final SeriesPreviewPanel previewPanel = new SeriesPreviewPanel(treeModel, new PreviewCache(PreviewCache.getDefaultRoot()));
+        tree.addTreeSelectionListener(previewPanel);
+        final JSplitPane treeSplit = new JSplitPane(JSplitPane.VERTICAL_SPLIT, treeView, new JScrollPane(previewPanel));
+        treeSplit.setResizeWeight(1.0);     // the tree gets any extra space
+
 
         // Set up Actions: these can be invoked from the menu bar or from a popup.
         keepAction = new CommandAction(rsrcb.getString(KEEP_ITEM), KeyEvent.VK_K);
@@ -320,7 +338,8 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
         addAction.setEnabled(false);
         needsFileSelection.add(addAction);
 
-        viewAction = new ViewSlicesAction(VIEW_ITEM, fileSelection);
+        viewAction = new ViewSlicesAction(treeModel, VIEW_ITEM, fileSelection);
+        viewAction.setCacheSize(prefs.getInt(VIEW_CACHE_PREF, DEFAULT_VIEW_CACHE_MB));
         viewAction.setEnabled(false);
         needsFileSelection.add(viewAction);
 
@@ -372,7 +391,7 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
             table.getColumnModel().getColumn(i).setPreferredWidth(columnWidths[i]);
 
         splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
-        splitPane.setLeftComponent(treeView);
+        splitPane.setLeftComponent(treeSplit);
         splitPane.setRightComponent(tableView);
         add(splitPane, BorderLayout.CENTER);
         frame.addComponentListener(this);
@@ -633,10 +652,13 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
 
 
     /**
-     * Handles the slow work of loading a FileSet, then calls createAndShowGUI when ready.
+     * Handles the slow work of loading a FileSet.  A new window is shown as soon
+     * as its (empty) FileSet is created; the files are then added in the background,
+     * appearing in the tree as they are read.
      * @author Kevin A. Archie <karchie@npg.wustl.edu>
      */
     private static final class FileSetReader implements Runnable {
+        private final Logger logger = LoggerFactory.getLogger(FileSetReader.class);
         private final File[] files;
         private final DicomBrowser browser;
         FileSetReader(final DicomBrowser browser, final File[] files) {
@@ -647,7 +669,7 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
             if (browser == null) {
                 final FileSet fs;
                 try {
-                    fs = new FileSet(files, true, SwingProgressMonitor.getMonitor(null, rsrcb.getString(CHECKING_FILES), "", 0, 100));
+                    fs = new FileSet(new File[0], true, SwingProgressMonitor.getMonitor(null, rsrcb.getString(CHECKING_FILES), "", 0, 100));
                     fs.setMaxValueLength(prefs.getInt(MAX_LEN_PREF, defaultMaxValueLen));
                     fs.setTruncateFormat(rsrcb.getString(TRUNCATE_FORMAT));
                 } catch (IOException e) {
@@ -664,9 +686,21 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
                     return;
 
                 }
-                SwingUtilities.invokeLater(new Runnable() {
-                    public void run() { createAndShowGUI(fs); }
-                });
+                final DicomBrowser[] created = new DicomBrowser[1];
+                try {
+                    SwingUtilities.invokeAndWait(new Runnable() {
+                        public void run() { created[0] = createAndShowGUI(fs); }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (InvocationTargetException e) {
+                    logger.error("unable to create browser window", e.getCause());
+                    return;
+                }
+                if (files.length > 0) {
+                    created[0].add(files);
+                }
             } else {
                 browser.add(files);
             }
@@ -699,13 +733,14 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
     private void closeBrowser() {
         frame.dispose();
         tableModel.dispose();
+        treeModel.dispose();    // stops any import before disposing of the FileSet
     }
 
     /**
      * Create a Frame to show one patient/dataset worth of data
      * This must be executed in the Swing thread
      */
-    private static void createAndShowGUI(final FileSet fs) {
+    private static DicomBrowser createAndShowGUI(final FileSet fs) {
         final JFrame frame = new JFrame("DicomBrowser");
         InterfaceCounter.getInstance().register(frame);
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -806,6 +841,7 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
 
         frame.pack();
         frame.setVisible(true);
+        return browser;
     }
 
     /**
@@ -832,6 +868,24 @@ implements ActionListener,ComponentListener,ListSelectionListener,TreeSelectionL
             prefs.putInt(MAX_LEN_PREF, Integer.parseInt(maxValueLen));
         }
 
+        // likewise DicomBrowser.export.threads for the number of export threads
+        final String exportThreads = System.getProperty("DicomBrowser." + EXPORT_THREADS_PREF);
+        if (null != exportThreads) {
+            prefs.putInt(EXPORT_THREADS_PREF, Integer.parseInt(exportThreads));
+        }
+
+        // and DicomBrowser.send.associations for the number of parallel C-STORE associations
+        final String sendAssociations = System.getProperty("DicomBrowser." + SEND_ASSOCIATIONS_PREF);
+        if (null != sendAssociations) {
+            prefs.putInt(SEND_ASSOCIATIONS_PREF, Integer.parseInt(sendAssociations));
+        }
+
+        // and DicomBrowser.view.cache.mb for the memory used by the slice viewer
+        final String viewCache = System.getProperty("DicomBrowser." + VIEW_CACHE_PREF);
+        if (null != viewCache) {
+            prefs.putInt(VIEW_CACHE_PREF, Integer.parseInt(viewCache));
+        }
+
         SwingUtilities.invokeLater(new Runnable() {
             public void run() { 
                 try {
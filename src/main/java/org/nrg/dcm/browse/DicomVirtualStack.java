@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.browse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * ImageJ stack over a list of DICOM files, one slice per file, that decodes
+ * slices only when they are displayed.  Decoded slices are kept in a
+ * least-recently-used cache limited in bytes, and each slice that is shown
+ * starts decoding of its neighbours, so that scrolling in either direction
+ * usually finds the next slice ready.  Decoding of slices that are no longer
+ * near the displayed slice is canceled if it hasn't started.
+ */
+final class DicomVirtualStack extends VirtualStack {
+    private static final int DEFAULT_READ_AHEAD = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(DicomVirtualStack.class);
+    private final List<File> files;
+    private final ExecutorService loader;
+    private final long maxCachedBytes;
+    private final ImageProcessor template;
+    private final Map<File,ImageProcessor> cache = new LinkedHashMap<File,ImageProcessor>(16, 0.75f, true);
+    private final Map<File,Load> loading = Maps.newHashMap();
+    private long cachedBytes = 0;
+    private int readAhead = DEFAULT_READ_AHEAD;
+
+    /**
+     * @param first the first slice, already decoded; it sets the stack dimensions
+     * @param files the slice files, in order, starting with the first slice
+     * @param loader executor on which neighbouring slices are decoded
+     * @param maxCachedBytes maximum size of the decoded slices kept in memory
+     */
+    DicomVirtualStack(final ImagePlus first, final List<File> files,
+            final ExecutorService loader, final long maxCachedBytes) {
+        super(first.getWidth(), first.getHeight(), first.getProcessor().getColorModel(), null);
+        this.files = Lists.newArrayList(files);
+        this.loader = loader;
+        this.maxCachedBytes = maxCachedBytes;
+        this.template = first.getStack().getProcessor(1);
+        setBitDepth(first.getBitDepth());
+        synchronized (cache) {
+            put(this.files.get(0), template);
+        }
+    }
+
+    /**
+     * Sets the number of slices decoded ahead on each side of the displayed slice.
+     * @param slices
+     * @return this
+     */
+    DicomVirtualStack setReadAhead(final int slices) {
+        this.readAhead = Math.max(0, slices);
+        return this;
+    }
+
+    /**
+     * @param ip
+     * @return size of the processor's pixels, in bytes
+     */
+    static long getSize(final ImageProcessor ip) {
+        final int bytesPerPixel = 24 == ip.getBitDepth() ? 4 : ip.getBitDepth() / 8;
+        return (long)ip.getWidth() * ip.getHeight() * bytesPerPixel;
+    }
+
+    /**
+     * Adds a decoded slice to the cache, evicting the least recently used
+     * slices as needed.  Must be called with the cache lock held.
+     */
+    private void put(final File file, final ImageProcessor ip) {
+        if (null == cache.put(file, ip)) {
+            cachedBytes += getSize(ip);
+        }
+        for (final Iterator<Map.Entry<File,ImageProcessor>> i = cache.entrySet().iterator();
+        cachedBytes > maxCachedBytes && i.hasNext(); ) {
+            final Map.Entry<File,ImageProcessor> me = i.next();
+            if (!me.getKey().equals(file)) {
+                cachedBytes -= getSize(me.getValue());
+                i.remove();
+            }
+        }
+    }
+
+    private static ImageProcessor decode(final File file) throws IOException {
+        return ViewSlicesAction.open(file).getStack().getProcessor(1);
+    }
+
+    /**
+     * Decoding of one slice, which leaves the loading map when it's done or canceled.
+     */
+    private final class Load extends FutureTask<ImageProcessor> {
+        private final File file;
+
+        Load(final File file, final Callable<ImageProcessor> decoder) {
+            super(decoder);
+            this.file = file;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (cache) {
+                if (this == loading.get(file)) {
+                    loading.remove(file);
+                }
+            }
+        }
+    }
+
+    private ImageProcessor decodeAndCache(final File file) throws IOException {
+        final ImageProcessor ip = decode(file);
+        synchronized (cache) {
+            put(file, ip);
+        }
+        return ip;
+    }
+
+    /**
+     * Starts decoding the given slice, unless it's cached or already loading.
+     * Must be called with the cache lock held.
+     */
+    private Future<ImageProcessor> load(final File file) {
+        final Load pending = loading.get(file);
+        if (null != pending || cache.containsKey(file)) {
+            return pending;
+        }
+        final Load load = new Load(file, new Callable<ImageProcessor>() {
+            public ImageProcessor call() throws IOException {
+                return decodeAndCache(file);
+            }
+        });
+        loading.put(file, load);
+        loader.execute(load);
+        return load;
+    }
+
+    /**
+     * Cancels decoding of the slices outside the read-ahead window around the
+     * given slice, then starts decoding of those inside it.  Must be called
+     * with the cache lock held.
+     */
+    private void readAround(final int index) {
+        final List<Load> stale = Lists.newArrayList();
+        for (final Load load : loading.values()) {
+            final int i = files.indexOf(load.file);
+            if (i < index - readAhead || i > index + readAhead) {
+                stale.add(load);
+            }
+        }
+        for (final Load load : stale) {
+            load.cancel(false);     // done() removes it from loading
+        }
+
+        for (int d = 1; d <= readAhead; d++) {
+            if (index + d < files.size()) {
+                load(files.get(index + d));
+            }
+            if (index - d >= 0) {
+                load(files.get(index - d));
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ij.VirtualStack#getProcessor(int)
+     */
+    @Override
+    public ImageProcessor getProcessor(final int n) {
+        final File file;
+        Future<ImageProcessor> pending;
+        synchronized (cache) {
+            file = files.get(n - 1);   // ImageJ slice numbers are 1-based
+            final ImageProcessor cached = cache.get(file);
+            readAround(n - 1);
+            if (null != cached) {
+                return cached;
+            }
+            pending = load(file);
+        }
+        try {
+            return pending.get();
+        } catch (CancellationException e) {
+            // Another thread moved the window away from this slice.
+            try {
+                return decodeAndCache(file);
+            } catch (IOException ioe) {
+                logger.error("unable to decode " + file, ioe);
+            }
+        } catch (ExecutionException e) {
+            logger.error("unable to decode " + file, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // ImageJ expects a processor for every slice; show a blank one.
+        return template.createProcessor(getWidth(), getHeight());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ij.VirtualStack#deleteSlice(int)
+     */
+    @Override
+    public void deleteSlice(final int n) {
+        synchronized (cache) {
+            final File file = files.remove(n - 1);
+            final ImageProcessor ip = cache.remove(file);
+            if (null != ip) {
+                cachedBytes -= getSize(ip);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ij.VirtualStack#getSize()
+     */
+    @Override
+    public int getSize() {
+        synchronized (cache) {
+            return files.size();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ij.VirtualStack#getSliceLabel(int)
+     */
+    @Override
+    public String getSliceLabel(final int n) {
+        return getFileName(n);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see ij.VirtualStack#getFileName(int)
+     */
+    @Override
+    public String getFileName(final int n) {
+        synchronized (cache) {
+            return files.get(n - 1).getName();
+        }
+    }
+}
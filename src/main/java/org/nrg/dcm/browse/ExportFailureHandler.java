@@ -8,7 +8,7 @@ import java.util.Map;
 
 import javax.swing.JOptionPane;
 
-import org.nrg.dcm.io.BatchExporter;
+import org.nrg.dcm.io.ParallelBatchExporter;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
@@ -16,9 +16,9 @@ import com.google.common.collect.ListMultimap;
 final class ExportFailureHandler implements Runnable {
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
     private final Component parent;
-    private final BatchExporter exporter;
+    private final ParallelBatchExporter exporter;
 
-    ExportFailureHandler(final BatchExporter exporter, final Component frame) {
+    ExportFailureHandler(final ParallelBatchExporter exporter, final Component frame) {
         this.exporter = exporter;
         this.parent = frame;
     }
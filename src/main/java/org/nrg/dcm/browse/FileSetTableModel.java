@@ -23,6 +23,7 @@ import java.util.concurrent.ExecutorService;
 import javax.swing.JOptionPane;
 import javax.swing.ListSelectionModel;
 import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.table.AbstractTableModel;
@@ -31,24 +32,25 @@ import javax.swing.tree.TreePath;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.net.TransferCapability;
 import org.dcm4che2.util.TagUtils;
-import org.nrg.attr.ConversionFailureException;
 import org.nrg.dcm.DirectoryRecord;
 import org.nrg.dcm.FileSet;
 import org.nrg.dcm.ProgressMonitorI;
 import org.nrg.dcm.edit.Assignment;
-import org.nrg.dcm.edit.Constraint;
 import org.nrg.dcm.edit.Deletion;
 import org.nrg.dcm.edit.Operation;
 import org.nrg.dcm.edit.ScriptEvaluationException;
 import org.nrg.dcm.edit.Statement;
 import org.nrg.dcm.io.AdjacentDirFileExporter;
 import org.nrg.dcm.io.AdjacentFileExporter;
-import org.nrg.dcm.io.BatchExporter;
 import org.nrg.dcm.io.CStoreExporter;
 import org.nrg.dcm.io.DicomObjectExporter;
+import org.nrg.dcm.io.EditPlan;
+import org.nrg.dcm.io.HeaderReader;
 import org.nrg.dcm.io.MultifileExporter;
 import org.nrg.dcm.io.NewRootFileExporter;
 import org.nrg.dcm.io.OverwriteFileExporter;
+import org.nrg.dcm.io.ParallelBatchExporter;
+import org.nrg.dcm.io.PooledCStoreExporter;
 import org.nrg.util.EditProgressMonitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -111,6 +113,10 @@ implements TreeSelectionListener,MultifileExporter {
     private static final long CONTENTS_SHOW_INTERVAL = 1000;
     private static final long CONTENTS_UPDATE_INTERVAL = 4000;       // ms, heuristic
 
+    // Shared by all tables; the worker threads are daemons, so they don't hold up exit.
+    private static final ParallelValueReader valueReader =
+	    new ParallelValueReader(Runtime.getRuntime().availableProcessors());
+
     private static final int nCols = 4;
     public static final int ACTION_COLUMN = 2;
     public static final int VALUE_COLUMN = 3;
@@ -122,12 +128,17 @@ implements TreeSelectionListener,MultifileExporter {
     private final FileSet fs;
     private final Set<TreePath> fileSelection = Sets.newLinkedHashSet();
     private final Set<File> selectedFiles = Sets.newLinkedHashSet();
-    private final Map<Integer,Map<File,Operation>> allOps = Maps.newHashMap();
+    private final OperationIndex allOps = new OperationIndex();
+    private volatile OperationIndex.Selection selection = allOps.select(selectedFiles);
+    private final Map<Integer,String> actionNames = Maps.newHashMap();  // by tag, for the current selection
+    private final HeaderReader headerReader = new HeaderReader();
     private final DicomBrowser browser;
 
     private StatusBar.TaskMonitor cachingProgress = null;
+    private int exportThreads = 1;
+    private int sendAssociations = 1;
 
-    private List<MultiValueAttribute> contents = Lists.newArrayList();
+    private final List<MultiValueAttribute> contents = Lists.newArrayList();  // modified only on the event dispatch thread
 
     private class CacheBuilder implements Runnable {
 	private final boolean wipe;
@@ -148,6 +159,32 @@ implements TreeSelectionListener,MultifileExporter {
 	this.executor = exs;
     }
 
+    /**
+     * Sets how long attribute values are displayed.
+     * @param maxLength maximum displayed value length
+     * @param truncateFormat format for truncated values (value is argument 1)
+     */
+    public void setValueTruncation(final int maxLength, final String truncateFormat) {
+	headerReader.setMaxValueLength(maxLength);
+	headerReader.setTruncateFormat(truncateFormat);
+    }
+
+    /**
+     * Sets the number of threads used to read, modify, and write files on export.
+     * @param threads
+     */
+    public void setExportThreads(final int threads) {
+	exportThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets the number of associations opened to the remote AE when sending.
+     * @param associations
+     */
+    public void setSendAssociations(final int associations) {
+	sendAssociations = Math.max(1, associations);
+    }
+
     public final SetMultimap<Integer,String> asMultimap() {
 	synchronized (contents) {
 	    final SetMultimap<Integer,String> m = LinkedHashMultimap.create();
@@ -158,33 +195,258 @@ implements TreeSelectionListener,MultifileExporter {
 	}
     }
 
+    /**
+     * Releases the operations.  The FileSet itself is disposed of by the tree
+     * model, which first stops any import in progress.
+     */
     public void dispose() {
 	allOps.clear();
-	fs.dispose();
     }
 
+    /**
+     * Collects the files below a record.  Files may still be being added to
+     * the FileSet, so the records are walked with its lock held.
+     */
     private void collectReferencedFiles(final DirectoryRecord root, final Set<File> files) {
 	final Queue<DirectoryRecord> records = Lists.newLinkedList();
 	records.add(root);
-	while (records.peek() != null) {
-	    final DirectoryRecord dr = records.poll();
-	    final String rfpath = dr.getValue(Tag.ReferencedFileID);
-	    if (rfpath != null)
-		files.add(new File(rfpath));
-	    records.addAll(dr.getLower());
+	synchronized (fs) {
+	    while (records.peek() != null) {
+		final DirectoryRecord dr = records.poll();
+		final String rfpath = dr.getValue(Tag.ReferencedFileID);
+		if (rfpath != null)
+		    files.add(new File(rfpath));
+		records.addAll(dr.getLower());
+	    }
 	}
     }
 
     private void updateValues(final SetMultimap<Integer,String> vals, final Collection<Integer> modified) {
 	assert vals.keySet().containsAll(modified);
 	final List<MultiValueAttribute> newContents = Lists.newArrayList();
-	for (final Integer tag : vals.keySet()) {
+	for (final Integer tag : Sets.newTreeSet(vals.keySet())) {
 	    newContents.add(MultiValueAttribute.Factory.create(fs, tag, modified.contains(tag), vals.get(tag)));
 	}
-	contents = newContents;
-	fireTableDataChanged();
+	publish(newContents);
+    }
+
+    private static boolean isSameRow(final MultiValueAttribute a, final MultiValueAttribute b) {
+	return null != a && null != b && a.getClass() == b.getClass()
+		&& a.getTag() == b.getTag() && a.isModified() == b.isModified()
+		&& Arrays.equals(a.getValues(), b.getValues());
+    }
+
+    private static boolean isSameContents(final List<MultiValueAttribute> a, final List<MultiValueAttribute> b) {
+	if (a.size() != b.size()) {
+	    return false;
+	}
+	for (int i = 0; i < a.size(); i++) {
+	    if (a.get(i) != b.get(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean isSortedByTag(final List<MultiValueAttribute> rows) {
+	int last = Integer.MIN_VALUE;
+	for (final MultiValueAttribute row : rows) {
+	    if (null == row || row.getTag() < last) {
+		return false;
+	    }
+	    last = row.getTag();
+	}
+	return true;
+    }
+
+    /**
+     * One change to the table contents: rows first through last are deleted,
+     * replaced by the given rows, or the given rows are inserted at first.
+     */
+    private static final class RowEdit {
+	static final int DELETE = 0, UPDATE = 1, INSERT = 2;
+	final int type, first, last;
+	final List<MultiValueAttribute> rows;
+
+	RowEdit(final int type, final int first, final int last, final List<MultiValueAttribute> rows) {
+	    this.type = type;
+	    this.first = first;
+	    this.last = last;
+	    this.rows = rows;
+	}
+    }
+
+    /**
+     * Works out the row-level changes that take the table from one set of
+     * contents to another.  Both lists must be in increasing tag order.
+     * @param from current contents; not modified
+     * @param to new contents
+     * @return edits, to be applied in order
+     */
+    private static List<RowEdit> diff(final List<MultiValueAttribute> from, final List<MultiValueAttribute> to) {
+	final List<RowEdit> edits = Lists.newArrayList();
+	final List<MultiValueAttribute> work = Lists.newArrayList(from);
+
+	// Remove the rows for attributes that are gone, last first so that
+	// the indices of runs not yet removed stay valid.
+	final Set<Integer> tags = Sets.newHashSet();
+	for (final MultiValueAttribute row : to) {
+	    tags.add(row.getTag());
+	}
+	for (int end = work.size() - 1; end >= 0; ) {
+	    if (tags.contains(work.get(end).getTag())) {
+		end--;
+	    } else {
+		int start = end;
+		while (start > 0 && !tags.contains(work.get(start - 1).getTag())) {
+		    start--;
+		}
+		work.subList(start, end + 1).clear();
+		edits.add(new RowEdit(RowEdit.DELETE, start, end, null));
+		end = start - 1;
+	    }
+	}
+
+	// Every remaining row has a counterpart in the new contents, in the
+	// same order; insert the new rows and replace the changed ones.
+	for (int row = 0; row < to.size(); ) {
+	    if (row < work.size() && work.get(row).getTag() == to.get(row).getTag()) {
+		int end = row;
+		while (end < to.size() && end < work.size()
+			&& work.get(end).getTag() == to.get(end).getTag()
+			&& !isSameRow(work.get(end), to.get(end))) {
+		    work.set(end, to.get(end));
+		    end++;
+		}
+		if (end > row) {
+		    edits.add(new RowEdit(RowEdit.UPDATE, row, end - 1, Lists.newArrayList(to.subList(row, end))));
+		    row = end;
+		} else {
+		    row++;
+		}
+	    } else {
+		int end = row;
+		while (end < to.size() && (end >= work.size()
+			|| work.get(end).getTag() != to.get(end).getTag())) {
+		    work.add(end, to.get(end));
+		    end++;
+		}
+		edits.add(new RowEdit(RowEdit.INSERT, row, end - 1, Lists.newArrayList(to.subList(row, end))));
+		row = end;
+	    }
+	}
+	assert work.size() == to.size();
+	return edits;
+    }
+
+    /**
+     * Replaces the table contents on the event dispatch thread.
+     * @param rows new table contents
+     */
+    private void replaceContents(final List<MultiValueAttribute> rows) {
+	SwingUtilities.invokeLater(new Runnable() {
+	    public void run() {
+		synchronized (contents) {
+		    contents.clear();
+		    contents.addAll(rows);
+		    fireTableDataChanged();
+		}
+	    }
+	});
+    }
+
+    /**
+     * Brings the table contents up to date with the given rows, firing row-level
+     * events only for the rows removed, inserted, or changed since the last
+     * publish, so the table keeps its selection and repaints only what changed.
+     * The changes are worked out on the calling thread, then applied to the
+     * contents, with their events, on the event dispatch thread, so the table
+     * never sees a row count that its events haven't announced.
+     * @param rows new table contents, in increasing tag order
+     */
+    private void publish(final List<MultiValueAttribute> rows) {
+	final List<MultiValueAttribute> before;
+	synchronized (contents) {
+	    before = Lists.newArrayList(contents);
+	}
+	if (!isSortedByTag(before)) {
+	    // Row positions aren't comparable; start over.
+	    replaceContents(rows);
+	    return;
+	}
+	final List<RowEdit> edits = diff(before, rows);
+	SwingUtilities.invokeLater(new Runnable() {
+	    public void run() {
+		synchronized (contents) {
+		    if (!isSameContents(before, contents)) {
+			// Something else changed the table since the diff; start over.
+			contents.clear();
+			contents.addAll(rows);
+			fireTableDataChanged();
+			return;
+		    }
+		    for (final RowEdit edit : edits) {
+			switch (edit.type) {
+			case RowEdit.DELETE:
+			    contents.subList(edit.first, edit.last + 1).clear();
+			    fireTableRowsDeleted(edit.first, edit.last);
+			    break;
+			case RowEdit.UPDATE:
+			    for (int i = edit.first; i <= edit.last; i++) {
+				contents.set(i, edit.rows.get(i - edit.first));
+			    }
+			    fireTableRowsUpdated(edit.first, edit.last);
+			    break;
+			case RowEdit.INSERT:
+			    contents.addAll(edit.first, edit.rows);
+			    fireTableRowsInserted(edit.first, edit.last);
+			    break;
+			default:
+			    throw new IllegalStateException("unknown row edit " + edit.type);
+			}
+		    }
+		    assert contents.size() == rows.size();
+		}
+	    }
+	});
     }
 
+    /**
+     * Reads the attribute values for one file, with operations applied.
+     * Read failures are logged and the file is skipped.  This method is
+     * called concurrently from the value reader threads.
+     * @param file file from which values are read
+     * @param values accumulator for the values and the tags modified by operations
+     */
+    private void readValues(final File file, final ParallelValueReader.Values values) {
+	try {
+	    final Map<Integer,String> fv = headerReader.readValues(file, 0, MAXTAG);
+	    // Build the values for the selected files with operations applied.
+	    // Some operations may add new attributes, so the complete set of tags
+	    // comes from both files and operations.
+	    final SortedSet<Integer> tags = Sets.newTreeSet(fv.keySet());
+	    for (final int tag : allOps.getTags()) {
+		tags.add(tag);
+	    }
+	    final Map<Integer,Operation> fileops = allOps.getOperations(file);
+	    for (final int tag : tags) {
+		final Operation op = fileops.get(tag);
+		if (null != op) {
+		    values.modified.add(tag);
+		    try {
+			final String v = op.apply(fv);
+			values.vals.put(tag, null == v ? rsrcb.getString("deleted") : v);
+		    } catch (ScriptEvaluationException e) {
+			logger.error("error applying script", e);
+		    }
+		} else {
+		    values.vals.put(tag, fv.get(tag));
+		}
+	    }
+	} catch (IOException e) {
+	    logger.error("error caching values from " + file, e);
+	}
+    }
 
     /**
      * Based on the current fileSelection, updates the list of selected files,
@@ -204,91 +466,72 @@ implements TreeSelectionListener,MultifileExporter {
 	synchronized(selectedFiles) {
 	    selectedFiles.clear();
 	    for (final TreePath tp : fileSelection) {
-		final DirectoryRecord dr = (DirectoryRecord)tp.getLastPathComponent();
-		collectReferencedFiles(dr, selectedFiles);
+		for (final DirectoryRecord dr : FileSetTreeModel.getRecords(tp.getLastPathComponent())) {
+		    collectReferencedFiles(dr, selectedFiles);
+		}
 	    }
 	    localSelectedFiles = Lists.newArrayList(selectedFiles);
+	    selection = allOps.select(localSelectedFiles);
 	}
+	invalidateActionNames();
 
 	if (wipeTableFirst) {
-	    contents.clear();
+	    replaceContents(Collections.<MultiValueAttribute>emptyList());
 	}
 
-	long lastUpdate = new Date().getTime() - CONTENTS_UPDATE_INTERVAL + CONTENTS_SHOW_INTERVAL;
-
 	cachingProgress = browser.statusBar.getTaskMonitor(0, localSelectedFiles.size(),
 		rsrcb.getString("reading-values"), rsrcb.getString("done"));
 
 	final ProgressMonitorI localTaskMonitor = cachingProgress;
 
-	final SetMultimap<Integer,String> vals = LinkedHashMultimap.create();
-	final Set<Integer> modified = Sets.newLinkedHashSet();
+	final ParallelValueReader.Values values = new ParallelValueReader.Values();
 
-	int progress = 0;
-	for (final File file : localSelectedFiles) {
-	    cachingProgress.setNote(String.format(rsrcb.getString(READING_VALS_FORMAT), file.getName()));
+	final ParallelValueReader.ValueSource source = new ParallelValueReader.ValueSource() {
+	    public void read(final File file, final ParallelValueReader.Values into) {
+		localTaskMonitor.setNote(String.format(rsrcb.getString(READING_VALS_FORMAT), file.getName()));
+		readValues(file, into);
+	    }
+	};
 
-	    final Map<Integer,String> fv;
-	    try {
-		final Map<Integer,ConversionFailureException> failures = Maps.newLinkedHashMap();
-		fv = fs.getValuesFromFile(file, 0, MAXTAG, failures);
-		if (failures.isEmpty()) {
-		    // Build the values for the selected files with operations applied.
-		    // Some operations may add new attributes, so the complete set of tags
-		    // comes from both files and operations.
-		    final SortedSet<Integer> tags = Sets.newTreeSet(Sets.union(fv.keySet(), allOps.keySet()));
-		    for (final int tag : tags) {
-			final Map<File,Operation> tagops = allOps.get(tag);
-			if (null != tagops && tagops.containsKey(file)) {
-			    modified.add(tag);
-			    try {
-				final String v = tagops.get(file).apply(fv);
-				vals.put(tag, null == v ? rsrcb.getString("deleted") : v);
-			    } catch (ScriptEvaluationException e) {
-				logger.error("error applying script", e);
-			    }
-			} else {
-			    vals.put(tag, fv.get(tag));
-			}
-		    }
-		} else {
-		    logger.error("Conversion errors reading {} : {}", file, failures);
-		    continue; // move on to next file
-		}
-	    } catch (IOException e) {
-		e.printStackTrace();
-		logger.error("error caching values", e);
-		continue;     // move on to next file
-	    } catch (SQLException e) {
-		e.printStackTrace();
-		logger.error("error caching values", e);
-		continue;  // move on to next file
-	    } catch (OutOfMemoryError e) {
-		JOptionPane.showMessageDialog(browser, rsrcb.getString(OUT_OF_MEMORY_MESSAGE),
-			rsrcb.getString(OUT_OF_MEMORY_TITLE), JOptionPane.ERROR_MESSAGE);
-		break;
-	    }
-	    finally {
-		if (localTaskMonitor.isCanceled()) {
-		    fireTableDataChanged();
-		    localTaskMonitor.close();
-		    if (localTaskMonitor == cachingProgress)      // TODO: needs synchronization?
-			cachingProgress = null;
-		    return;     // only way to cancel this is to make a new tree selection
+	// Show the values read so far every so often while the read continues.
+	final Runnable refresh = new Runnable() {
+	    private long lastUpdate = new Date().getTime() - CONTENTS_UPDATE_INTERVAL + CONTENTS_SHOW_INTERVAL;
+
+	    public void run() {
+		if (new Date().getTime() - lastUpdate > CONTENTS_UPDATE_INTERVAL) {
+		    updateValues(values.vals, values.modified);
+		    lastUpdate = new Date().getTime();
 		}
-		cachingProgress.setProgress(++progress);
 	    }
+	};
 
-	    if (new Date().getTime() - lastUpdate > CONTENTS_UPDATE_INTERVAL) {
-		updateValues(vals, modified);
-		lastUpdate = new Date().getTime();
-	    }
+	boolean completed;
+	try {
+	    completed = valueReader.read(localSelectedFiles, source, localTaskMonitor, values, refresh);
+	} catch (OutOfMemoryError e) {
+	    JOptionPane.showMessageDialog(browser, rsrcb.getString(OUT_OF_MEMORY_MESSAGE),
+		    rsrcb.getString(OUT_OF_MEMORY_TITLE), JOptionPane.ERROR_MESSAGE);
+	    completed = true;	// show whatever we managed to read
 	}
 
-	updateValues(vals, modified);
+	if (!completed) {
+	    SwingUtilities.invokeLater(new Runnable() {
+		public void run() {
+		    fireTableDataChanged();
+		}
+	    });
+	    localTaskMonitor.close();
+	    if (localTaskMonitor == cachingProgress)      // TODO: needs synchronization?
+		cachingProgress = null;
+	    return;     // only way to cancel this is to make a new tree selection
+	}
 
-	cachingProgress.close();
-	cachingProgress = null;
+	updateValues(values.vals, values.modified);
+	logger.debug("read {} header bytes from {} files so far", headerReader.getBytesRead(), headerReader.getFilesRead());
+
+	localTaskMonitor.close();
+	if (localTaskMonitor == cachingProgress)
+	    cachingProgress = null;
     }
 
     /* (non-Javadoc)
@@ -326,7 +569,9 @@ implements TreeSelectionListener,MultifileExporter {
      * @see javax.swing.table.TableModel#getRowCount()
      */
     public int getRowCount() {
-	return contents.size();
+	synchronized (contents) {
+	    return contents.size();
+	}
     }
 
     /* (non-Javadoc)
@@ -350,25 +595,7 @@ implements TreeSelectionListener,MultifileExporter {
 	    case 0: return row.getTagString();
 	    case 1: return row.getNameString();
 
-	    case ACTION_COLUMN: {
-		final int tag = row.getTag();
-		final Set<Operation> ops = Sets.newHashSet();
-		synchronized(selectedFiles) {
-		    for (final File file : selectedFiles) {
-			if (allOps.containsKey(tag)) {
-			    ops.add(allOps.get(tag).get(file));  // null here = KEEP
-			} else {
-			    ops.add(null);       // implicit KEEP
-			}
-			if (ops.size() > 1) {
-			    return OperationFactory.getMultipleName();
-			}
-		    }
-		}
-		assert ops.size() == 1;
-		final Operation op = ops.iterator().next();
-		return null == op ? OperationFactory.getDefaultName() : op.getName();
-	    }
+	    case ACTION_COLUMN: return getActionName(row.getTag());
 
 	    case VALUE_COLUMN: return row;
 
@@ -377,6 +604,37 @@ implements TreeSelectionListener,MultifileExporter {
 	}
     }
 
+    /**
+     * Gets the name of the action on the given attribute over the selected
+     * files.  Names are cached until the selection or the operations change.
+     * @param tag attribute
+     * @return action name
+     */
+    private String getActionName(final int tag) {
+	synchronized (actionNames) {
+	    final String cached = actionNames.get(tag);
+	    if (null != cached) {
+		return cached;
+	    }
+	    final OperationIndex.Summary summary = allOps.summarize(tag, selection);
+	    final Operation op = summary.getOperation();    // null here = implicit KEEP
+	    final String name;
+	    if (summary.isMixed()) {
+		name = OperationFactory.getMultipleName();
+	    } else {
+		name = null == op ? OperationFactory.getDefaultName() : op.getName();
+	    }
+	    actionNames.put(tag, name);
+	    return name;
+	}
+    }
+
+    private void invalidateActionNames() {
+	synchronized (actionNames) {
+	    actionNames.clear();
+	}
+    }
+
     public boolean allowClear(final ListSelectionModel lsm) {
 	for (int i = lsm.getMinSelectionIndex(); i <= lsm.getMaxSelectionIndex(); i++) {
 	    if (lsm.isSelectedIndex(i)) {
@@ -437,6 +695,7 @@ implements TreeSelectionListener,MultifileExporter {
 	// should be saved to put into the undo stack
 	final Set<Integer> affectedTags = Sets.newTreeSet();
 	final Map<File,Operation> replacedOps = addOperation(op, selectedFiles, affectedTags);
+	invalidateActionNames();
 	browser.add(new Command(op, selectedFiles, replacedOps, affectedTags));
 
 	// Assign the modified row contents
@@ -482,27 +741,22 @@ implements TreeSelectionListener,MultifileExporter {
 	    } catch (ScriptEvaluationException e) {
 		v = null;
 	    }
-	    final List<MultiValueAttribute> tcontents = Lists.newArrayList(contents);
-	    for (int row = 0; row < contents.size(); row++) {
-		final int tag = contents.get(row).getTag();
-		if (op.affects(tag)) {
-		    final MultiValueAttribute value = MultiValueAttribute.Factory.create(fs, tag, true, v);
-		    int newRow = -1;
-		    for (final ListIterator<MultiValueAttribute> i = tcontents.listIterator(); i.hasNext();) {
-			final int tt = i.next().getTag();
-			if (tag < tt) {
-			    i.previous();
-			    i.add(value);
-			    newRow = i.previousIndex();
-			    break;
+	    synchronized (contents) {
+		for (int row = 0; row < contents.size(); row++) {
+		    final int tag = contents.get(row).getTag();
+		    if (op.affects(tag)) {
+			final MultiValueAttribute value = MultiValueAttribute.Factory.create(fs, tag, true, v);
+			int newRow = contents.size();
+			for (final ListIterator<MultiValueAttribute> i = contents.listIterator(); i.hasNext();) {
+			    if (tag < i.next().getTag()) {
+				newRow = i.previousIndex();
+				break;
+			    }
 			}
+			contents.add(newRow, value);
+			fireTableRowsInserted(newRow, newRow);
+			break;
 		    }
-		    if (newRow < 0) {
-			tcontents.add(value);
-			newRow = contents.size();
-		    }
-		    contents = tcontents;
-		    fireTableRowsInserted(newRow,newRow);
 		}
 	    }
 	}
@@ -520,15 +774,12 @@ implements TreeSelectionListener,MultifileExporter {
 	    final int tag = contents.get(row).getTag();
 	    if (op.affects(tag)) {
 		for (final File file : files) {
-		    if (!allOps.containsKey(tag)) {
-			allOps.put(tag, Maps.<File,Operation>newHashMap());
-		    }
-		    if (allOps.get(tag).containsKey(file)) {
-			replaced.put(file, allOps.get(tag).get(file));
+		    final Operation prev = allOps.put(tag, file, op);
+		    if (null != prev) {
+			replaced.put(file, prev);
 		    }
-		    allOps.get(tag).put(file, op);
 		}
-		if (null != affectedTags && allOps.containsKey(tag)) {
+		if (null != affectedTags && allOps.containsTag(tag)) {
 		    affectedTags.add(tag);
 		}
 	    }
@@ -556,6 +807,7 @@ implements TreeSelectionListener,MultifileExporter {
 	    }
 	    replaced.put(tag, addOperation(ops[i], selectedFiles, null));
 	}
+	invalidateActionNames();
 
 	final Command command = new Command(ops, selectedFiles, replaced);
 	refreshAfterCommand(command);
@@ -580,7 +832,9 @@ implements TreeSelectionListener,MultifileExporter {
 
 	final Collection<File> files;
 	try {
-	    files = onlySelected ? selectedFiles : fs.getDataFiles();
+	    synchronized (fs) {
+		files = onlySelected ? selectedFiles : fs.getDataFiles();
+	    }
 	} catch (SQLException e) {
 	    JOptionPane.showMessageDialog(browser.getFrame(),
 		    "Error getting file list: " + e.getMessage(),
@@ -615,6 +869,7 @@ implements TreeSelectionListener,MultifileExporter {
 	    }
 	    pm.setProgress(++progress);
 	}
+	invalidateActionNames();
 
 	final Command command = new Command(ops, replaced);
 	refreshAfterCommand(command);
@@ -650,6 +905,7 @@ implements TreeSelectionListener,MultifileExporter {
 	for (int i = 0; i < ops.length; i++) {
 	    addOperation(ops[i], Arrays.asList(c.getFiles(i)), null);
 	}
+	invalidateActionNames();
 	refreshAfterCommand(c);
     }
 
@@ -668,10 +924,7 @@ implements TreeSelectionListener,MultifileExporter {
 		final int tag = contents.get(row).getTag();
 		if (ops[i].affects(tag)) {
 		    for (final File file : c.getFiles(i)) {
-			allOps.get(tag).remove(file);
-			if (allOps.get(tag).isEmpty()) {
-			    allOps.remove(tag);
-			}
+			allOps.remove(tag, file);
 		    }
 		    restoredOps.addAll(c.getReplaced().get(tag).entrySet());
 		}
@@ -681,33 +934,33 @@ implements TreeSelectionListener,MultifileExporter {
 	for (final Map.Entry<File,Operation> e : restoredOps) {
 	    addOperation(e.getValue(), e.getKey(), null);
 	}
+	invalidateActionNames();
 
 	refreshAfterCommand(c);
     }
 
     public int size() throws SQLException {
-	return fs.size();
+	synchronized (fs) {
+	    return fs.size();
+	}
     }
 
 
     /**
-     * Build a list of Statements equivalent to our operation map
-     * @return head of Statement list
+     * Compile our operation map into a plan for export.  Keep operations
+     * leave the file unchanged, so they are left out.
+     * @return export plan
      */
-    private List<Statement> buildStatements() {
-	// Build a list of Statements equivalent to our operation map
-	final SetMultimap<Operation,File> ops = LinkedHashMultimap.create();
-	for (final Map<File,Operation> tagops : allOps.values()) {
-	    for (final Map.Entry<File,Operation> e : tagops.entrySet()) {
-		ops.put(e.getValue(), e.getKey());
-	    }
-	}
+    private EditPlan buildPlan() {
+	final SetMultimap<Operation,File> ops = allOps.getFilesByOperation();
 
-	final List<Statement> statements = Lists.newArrayList();
+	final EditPlan.Builder builder = new EditPlan.Builder();
 	for (final Operation op : ops.keySet()) {
-	    statements.add(new Statement(new Constraint(null, ops.get(op)), op));
+	    if (!(op instanceof Keep)) {
+		builder.add(op, ops.get(op));
+	    }
 	}
-	return statements;
+	return builder.build();
     }
 
     /**
@@ -724,12 +977,14 @@ implements TreeSelectionListener,MultifileExporter {
 	    final Set<File> files;
 	    final TransferCapability[] tcs;
 	    synchronized(this) {
-		if (allFiles) {
-		    files = fs.getDataFiles();
-		    tcs = fs.getTransferCapabilities(TransferCapability.SCU);
-		} else {
-		    files = selectedFiles;
-		    tcs = fs.getTransferCapabilities(TransferCapability.SCU, selectedFiles);
+		synchronized (fs) {
+		    if (allFiles) {
+			files = fs.getDataFiles();
+			tcs = fs.getTransferCapabilities(TransferCapability.SCU);
+		    } else {
+			files = selectedFiles;
+			tcs = fs.getTransferCapabilities(TransferCapability.SCU, selectedFiles);
+		    }
 		}
 	    }
 
@@ -741,11 +996,17 @@ implements TreeSelectionListener,MultifileExporter {
 		}
 	    }
 
-	    final DicomObjectExporter exporter = new CStoreExporter(host, port, isTLS, remAETitle, locAETitle, tcs);
+	    final DicomObjectExporter exporter;
+	    if (sendAssociations > 1) {
+		exporter = new PooledCStoreExporter(host, port, isTLS, remAETitle, locAETitle, tcs, sendAssociations);
+	    } else {
+		exporter = new CStoreExporter(host, port, isTLS, remAETitle, locAETitle, tcs);
+	    }
 	    final EditProgressMonitor pm = SwingProgressMonitor.getMonitor(browser.getFrame(),
 		    rsrcb.getString(SENDING_FILES), "", 0, files.size());
 
-	    final BatchExporter batch = new BatchExporter(exporter, buildStatements(), files);
+	    final ParallelBatchExporter batch = new ParallelBatchExporter(exporter, buildPlan(), files);
+	    batch.setParallelism(exportThreads, sendAssociations);  // one writer per association
 	    batch.setProgressMonitor(pm, 0);
 	    executor.execute(new ExportFailureHandler(batch, browser.getFrame()));
 	} catch (SQLException e) {
@@ -762,7 +1023,9 @@ implements TreeSelectionListener,MultifileExporter {
     private void export(final DicomObjectExporter exporter, final boolean allFiles) {
 	final SortedSet<File> files;
 	try {
-	    files = Sets.newTreeSet(allFiles ? fs.getDataFiles() : selectedFiles);
+	    synchronized (fs) {
+		files = Sets.newTreeSet(allFiles ? fs.getDataFiles() : selectedFiles);
+	    }
 	} catch (SQLException e) {
 	    logger.error("unable to get data files", e);
 	    JOptionPane.showMessageDialog(browser.getFrame(),      // TODO: localize
@@ -775,7 +1038,8 @@ implements TreeSelectionListener,MultifileExporter {
 	final EditProgressMonitor pm = SwingProgressMonitor.getMonitor(browser.getFrame(),
 		rsrcb.getString(WRITING_FILES), "", 0, files.size());
 
-	final BatchExporter batch = new BatchExporter(exporter, buildStatements(), files);
+	final ParallelBatchExporter batch = new ParallelBatchExporter(exporter, buildPlan(), files);
+	batch.setParallelism(exportThreads, exportThreads);
 	batch.setProgressMonitor(pm, 0);
 	executor.execute(new ExportFailureHandler(batch, browser.getFrame()));
     }
@@ -791,7 +1055,9 @@ implements TreeSelectionListener,MultifileExporter {
     public void saveInNewRoot(final String rootpath, final boolean allFiles) {
 	final DicomObjectExporter exporter;
 	try {
-	    exporter = new NewRootFileExporter(AE_TITLE, new File(rootpath), fs.getRoots());
+	    synchronized (fs) {
+		exporter = new NewRootFileExporter(AE_TITLE, new File(rootpath), fs.getRoots());
+	    }
 	} catch (Exception e) {
 	    logger.error("unable to resolve data roots", e);
 	    JOptionPane.showMessageDialog(browser.getFrame(),      // TODO: localize
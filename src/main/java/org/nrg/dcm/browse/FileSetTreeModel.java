@@ -4,10 +4,19 @@
 package org.nrg.dcm.browse;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.ListResourceBundle;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.List;
 import java.util.LinkedList;
 
@@ -20,9 +29,14 @@ import javax.swing.event.TreeModelEvent;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 
+import org.dcm4che2.data.Tag;
 import org.nrg.dcm.FileSet;
 import org.nrg.dcm.DirectoryRecord;
 import org.nrg.dcm.ProgressMonitorI;
+import org.nrg.dcm.io.AbstractFileExporter;
+import org.nrg.io.FileWalkIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -32,6 +46,7 @@ public final class FileSetTreeModel implements TreeModel {
   private static final String READING_FILES = "Reading files...";
   private static final String UNABLE_TO_LOAD_FILE = "Unable to load file: %1$s";
   private static final String IMPORT_FAILED = "Import failed";
+  private static final String INSTANCE_RANGE_FORMAT = "instances %1$d-%2$d";
 
   private static final ResourceBundle rsrcb = new ListResourceBundle() {
     @Override
@@ -40,43 +55,591 @@ public final class FileSetTreeModel implements TreeModel {
 	{READING_FILES, READING_FILES},
 	{UNABLE_TO_LOAD_FILE, UNABLE_TO_LOAD_FILE},
 	{IMPORT_FAILED, IMPORT_FAILED},
+	{INSTANCE_RANGE_FORMAT, INSTANCE_RANGE_FORMAT},
     };
   };
 
+  private static final int FILES_PER_BATCH = 64;
+  private static final long PUBLISH_INTERVAL = 250;	// ms
+  private static final int INSTANCES_PER_RANGE = 1000;
+
+  private final Logger logger = LoggerFactory.getLogger(FileSetTreeModel.class);
   private final Component window;
   private final FileSet fs;
-  private List<DirectoryRecord> patients;
   private final Collection<TreeModelListener> listeners = new HashSet<TreeModelListener>();
+  private volatile boolean disposed = false;
+
+  /**
+   * Children of one node, indexed for constant-time position lookups.
+   */
+  private static final class ChildList {
+    private final List<Object> nodes;
+    private final List<DirectoryRecord> grouped;	// instances grouped into ranges, or null
+    private Map<Object,Integer> indices = null;
+
+    ChildList(final Collection<?> nodes, final List<DirectoryRecord> grouped) {
+      this.nodes = new ArrayList<Object>(nodes);
+      this.grouped = grouped;
+    }
+
+    ChildList(final Collection<?> nodes) {
+      this(nodes, null);
+    }
+
+    int size() { return nodes.size(); }
+
+    Object get(final int index) { return nodes.get(index); }
+
+    synchronized int indexOf(final Object child) {
+      if (null == indices) {
+	indices = new IdentityHashMap<Object,Integer>(nodes.size() * 4 / 3 + 1);
+	for (int i = 0; i < nodes.size(); i++) {
+	  indices.put(nodes.get(i), i);
+	}
+      }
+      final Integer i = indices.get(child);
+      return null == i ? -1 : i;
+    }
+  }
+
+  private static final ChildList NO_CHILDREN = new ChildList(Collections.emptyList());
+
+  /**
+   * Virtual tree node for a contiguous range of the instances in a large series,
+   * in InstanceNumber order.  Its child list is built only when the node is
+   * first expanded.
+   */
+  static final class RecordRange {
+    private final DirectoryRecord series;
+    private final List<DirectoryRecord> instances;
+    private final int first;
+    private ChildList childList = null;
+
+    private RecordRange(final DirectoryRecord series, final List<DirectoryRecord> instances, final int first) {
+      this.series = series;
+      this.instances = instances;
+      this.first = first;
+    }
+
+    DirectoryRecord getSeries() { return series; }
+
+    List<DirectoryRecord> getInstances() { return Collections.unmodifiableList(instances); }
+
+    private synchronized ChildList getChildList() {
+      if (null == childList) {
+	childList = new ChildList(instances);
+      }
+      return childList;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(rsrcb.getString(INSTANCE_RANGE_FORMAT), first, first + instances.size() - 1);
+    }
+  }
+
+  /**
+   * Gets the directory records represented by a tree node.
+   * @param node tree node: a DirectoryRecord or an instance range
+   * @return the record itself, or the instances in the range
+   */
+  static Collection<DirectoryRecord> getRecords(final Object node) {
+    if (node instanceof RecordRange) {
+      return ((RecordRange)node).getInstances();
+    } else {
+      return Collections.singleton((DirectoryRecord)node);
+    }
+  }
+
+  /**
+   * Child lists as last published to the listeners, keyed by parent node
+   * (the FileSet for the root).  The tree is always shown from this snapshot,
+   * so the FileSet can be modified outside the event dispatch thread; the
+   * snapshot is replaced only on the event dispatch thread.
+   */
+  private volatile Map<Object,ChildList> children;
+
+  /**
+   * The most recent snapshot, which may not have been published yet, and the
+   * parents whose children may have changed since it was made.  Both are
+   * guarded by the FileSet lock.
+   */
+  private Map<Object,ChildList> latest;
+  private final Set<Object> touched = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
 
   FileSetTreeModel(final Component window, final FileSet fs) {
     this.window = window;
     this.fs = fs;
-    handleAdd();
+    touched.add(fs);
+    children = latest = snapshot(Collections.<Object,ChildList>emptyMap(), new ArrayList<Object>(touched));
+    touched.clear();
   }
 
 
-  private void handleAdd() {
-    patients = new LinkedList<DirectoryRecord>(fs.getPatientDirRecords());
-    final TreeModelEvent e = new TreeModelEvent(this, new Object[]{fs});	// TODO: permit treeNodesInserted
-    for (TreeModelListener l : listeners)
-      l.treeStructureChanged(e);
+  /**
+   * Depth of a node in the tree: 0 for the root, 1 for patients, and so on.
+   */
+  private int getDepth(final Object node) {
+    int depth = 0;
+    for (DirectoryRecord dr = node == fs ? null : (DirectoryRecord)node; null != dr; dr = dr.getUpper()) {
+      depth++;
+    }
+    return depth;
+  }
+
+
+  /**
+   * @return path from the root to the given node
+   */
+  private List<Object> getPath(final Object node) {
+    final LinkedList<Object> path = new LinkedList<Object>();
+    for (DirectoryRecord dr = node == fs ? null : (DirectoryRecord)node; null != dr; dr = dr.getUpper()) {
+      path.addFirst(dr);
+    }
+    path.addFirst(fs);
+    return path;
+  }
+
+
+  /**
+   * Copies the current structure of the FileSet under the given parents,
+   * sharing the rest with the previous snapshot.  Children new since the
+   * previous snapshot are copied with all their descendants; children that are
+   * gone are dropped with theirs.  Must not run concurrently with modifications
+   * of the FileSet.  Series with many instances are shown as instance ranges;
+   * the ranges from the previous snapshot are reused if the series hasn't changed.
+   * @param previous the previous snapshot
+   * @param parents the parents whose children may have changed, ancestors first
+   */
+  private Map<Object,ChildList> snapshot(final Map<Object,ChildList> previous, final List<Object> parents) {
+    final Map<Object,ChildList> m = new IdentityHashMap<Object,ChildList>(previous);
+    final Set<Object> copied = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+    for (final Object parent : parents) {
+      if (copied.contains(parent) || (parent != fs && !m.containsKey(parent))) {
+	continue;       // already copied, or dropped, with an ancestor
+      }
+      final LinkedList<Object> pending = new LinkedList<Object>();
+      pending.add(parent);
+      while (!pending.isEmpty()) {
+	final Object node = pending.removeFirst();
+	final List<DirectoryRecord> lower = new ArrayList<DirectoryRecord>(node == fs
+	    ? fs.getPatientDirRecords() : ((DirectoryRecord)node).getLower());
+	final ChildList c;
+	if (node instanceof DirectoryRecord && DirectoryRecord.Type.SERIES == ((DirectoryRecord)node).getType()
+	    && lower.size() > INSTANCES_PER_RANGE) {
+	  c = getRanges((DirectoryRecord)node, lower, previous.get(node));
+	} else {
+	  c = new ChildList(lower);
+	}
+	final ChildList old = m.put(node, c);
+	copied.add(node);
+	if (null != old) {
+	  for (int i = 0; i < old.size(); i++) {
+	    if (c.indexOf(old.get(i)) < 0) {
+	      forget(m, old.get(i));
+	    }
+	  }
+	}
+	if (null == c.grouped) {
+	  for (final DirectoryRecord dr : lower) {
+	    if (DirectoryRecord.Type.INSTANCE != dr.getType() && !m.containsKey(dr)) {
+	      pending.add(dr);        // new node
+	    }
+	  }
+	}
+      }
+    }
+    return m;
+  }
+
+
+  /**
+   * Drops a node that's no longer in the FileSet, with its descendants,
+   * from a snapshot.
+   */
+  private static void forget(final Map<Object,ChildList> m, final Object node) {
+    final ChildList c = m.remove(node);
+    if (null != c && null == c.grouped) {
+      for (int i = 0; i < c.size(); i++) {
+	forget(m, c.get(i));
+      }
+    }
+  }
+
+
+  /**
+   * Marks the parents whose child counts differ from the given snapshot.
+   * Adding files to the FileSet only adds children, so after an add these are
+   * exactly the parents that gained children.  Only the patients, studies,
+   * and series are visited; instance lists are counted, not copied.
+   * Must be invoked while holding the FileSet lock.
+   * @param snapshot the snapshot to compare against
+   */
+  private void touchGrown(final Map<Object,ChildList> snapshot) {
+    final Collection<DirectoryRecord> patients = fs.getPatientDirRecords();
+    if (count(snapshot.get(fs)) != patients.size()) {
+      touched.add(fs);
+    }
+    final LinkedList<DirectoryRecord> pending = new LinkedList<DirectoryRecord>(patients);
+    while (!pending.isEmpty()) {
+      final DirectoryRecord dr = pending.removeFirst();
+      final ChildList c = snapshot.get(dr);
+      if (null == c) {
+	continue;       // new node, copied with its parent
+      }
+      final Collection<DirectoryRecord> lower = dr.getLower();
+      if (count(c) != lower.size()) {
+	touched.add(dr);
+      }
+      if (null == c.grouped) {
+	for (final DirectoryRecord child : lower) {
+	  if (DirectoryRecord.Type.INSTANCE != child.getType()) {
+	    pending.add(child);
+	  }
+	}
+      }
+    }
+  }
+
+
+  /**
+   * @return number of FileSet records under the parent of the given child list
+   */
+  private static int count(final ChildList c) {
+    return null == c ? -1 : null == c.grouped ? c.size() : c.grouped.size();
+  }
+
+
+  /**
+   * @param instance
+   * @return the instance's InstanceNumber, or Integer.MAX_VALUE if it has none,
+   *         so that unnumbered instances sort last
+   */
+  static int getInstanceNumber(final DirectoryRecord instance) {
+    final String v = instance.getValue(Tag.InstanceNumber);
+    if (null != v) {
+      try {
+	return Integer.parseInt(v.trim());
+      } catch (NumberFormatException e) {}
+    }
+    return Integer.MAX_VALUE;	// unnumbered instances go last
+  }
+
+
+  /**
+   * Groups the instances of a large series into ranges, sorted by InstanceNumber.
+   * @param series
+   * @param instances the series instances, in FileSet order
+   * @param previous the series child list from the previous snapshot, or null
+   * @return child list of instance ranges
+   */
+  private static ChildList getRanges(final DirectoryRecord series, final List<DirectoryRecord> instances,
+      final ChildList previous) {
+    if (null != previous && null != previous.grouped && previous.grouped.size() == instances.size()) {
+      boolean same = true;
+      for (int i = 0; same && i < instances.size(); i++) {
+	same = previous.grouped.get(i) == instances.get(i);
+      }
+      if (same) {
+	return previous;
+      }
+    }
+
+    // Sort on precomputed keys; the stable sort keeps FileSet order for equal numbers.
+    final int[] numbers = new int[instances.size()];
+    final Integer[] order = new Integer[instances.size()];
+    for (int i = 0; i < order.length; i++) {
+      numbers[i] = getInstanceNumber(instances.get(i));
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(final Integer a, final Integer b) {
+	return numbers[a] < numbers[b] ? -1 : numbers[a] == numbers[b] ? 0 : 1;
+      }
+    });
+    final List<DirectoryRecord> sorted = new ArrayList<DirectoryRecord>(order.length);
+    for (final int i : order) {
+      sorted.add(instances.get(i));
+    }
+
+    final List<RecordRange> ranges = new ArrayList<RecordRange>();
+    for (int start = 0; start < sorted.size(); start += INSTANCES_PER_RANGE) {
+      ranges.add(new RecordRange(series,
+	  sorted.subList(start, Math.min(sorted.size(), start + INSTANCES_PER_RANGE)), start + 1));
+    }
+    return new ChildList(ranges, instances);
+  }
+
+
+  private static int[] toArray(final List<Integer> l) {
+    final int[] a = new int[l.size()];
+    for (int i = 0; i < a.length; i++) {
+      a[i] = l.get(i);
+    }
+    return a;
+  }
+
+
+  /**
+   * Collects the listener events that take the children of one parent from the
+   * old structure to the new one.  Nodes removed from or added under the parent
+   * become treeNodesRemoved (with indices in the old child list) and
+   * treeNodesInserted (with indices in the new child list) events; the
+   * descendants of removed or new nodes are covered by the event for their
+   * ancestor.  A parent whose remaining children were reordered gets a
+   * treeStructureChanged event instead.
+   * @param from old structure
+   * @param to new structure
+   * @param path path to the parent
+   * @param removed accumulator for removal events
+   * @param inserted accumulator for insertion events
+   * @param changed accumulator for structure change events
+   * @return true if the parent gets a structure change event
+   */
+  private boolean diff(final Map<Object,ChildList> from, final Map<Object,ChildList> to,
+      final List<Object> path, final Collection<TreeModelEvent> removed,
+      final Collection<TreeModelEvent> inserted, final Collection<TreeModelEvent> changed) {
+    final Object node = path.get(path.size() - 1);
+    final ChildList was = from.get(node), is = to.get(node);
+    if (null == was || null == is) {
+      return false;
+    }
+
+    final List<Integer> removedIndices = new ArrayList<Integer>();
+    final List<Object> removedNodes = new ArrayList<Object>();
+    final List<Object> kept = new ArrayList<Object>();
+    for (int i = 0; i < was.size(); i++) {
+      final Object dr = was.get(i);
+      if (is.indexOf(dr) < 0) {
+	removedIndices.add(i);
+	removedNodes.add(dr);
+      } else {
+	kept.add(dr);
+      }
+    }
+
+    final List<Integer> insertedIndices = new ArrayList<Integer>();
+    final List<Object> insertedNodes = new ArrayList<Object>();
+    final Iterator<Object> keptIterator = kept.iterator();
+    for (int i = 0; i < is.size(); i++) {
+      final Object dr = is.get(i);
+      if (was.indexOf(dr) < 0) {
+	insertedIndices.add(i);
+	insertedNodes.add(dr);
+      } else if (keptIterator.next() != dr) {
+	changed.add(new TreeModelEvent(this, path.toArray()));
+	return true;
+      }
+    }
+
+    if (!removedNodes.isEmpty()) {
+      removed.add(new TreeModelEvent(this, path.toArray(), toArray(removedIndices), removedNodes.toArray()));
+    }
+    if (!insertedNodes.isEmpty()) {
+      inserted.add(new TreeModelEvent(this, path.toArray(), toArray(insertedIndices), insertedNodes.toArray()));
+    }
+    return false;
+  }
+
+
+  /**
+   * Builds the update that publishes the current structure of the FileSet
+   * to the listeners.  Only the parents touched since the last update are
+   * copied and compared.  Must be invoked while holding the FileSet lock.
+   * @return update to be run on the event dispatch thread, or null if the
+   *         structure hasn't changed
+   */
+  private Runnable prepareUpdate() {
+    final Map<Object,ChildList> from = latest;
+    touchGrown(from);
+    if (touched.isEmpty()) {
+      return null;
+    }
+    final List<Object> parents = new ArrayList<Object>(touched);
+    touched.clear();
+    final int[] depths = new int[parents.size()];
+    final Integer[] order = new Integer[parents.size()];
+    for (int i = 0; i < order.length; i++) {
+      depths[i] = getDepth(parents.get(i));
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(final Integer a, final Integer b) {
+	return depths[a] - depths[b];
+      }
+    });
+    final List<Object> sorted = new ArrayList<Object>(order.length);
+    for (final int i : order) {
+      sorted.add(parents.get(i));
+    }
+
+    final Map<Object,ChildList> to = latest = snapshot(from, sorted);
+    final Collection<TreeModelEvent> removed = new LinkedList<TreeModelEvent>();
+    final Collection<TreeModelEvent> inserted = new LinkedList<TreeModelEvent>();
+    final Collection<TreeModelEvent> changed = new LinkedList<TreeModelEvent>();
+    final Set<Object> restructured = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+    for (final Object parent : sorted) {
+      if (!from.containsKey(parent) || !to.containsKey(parent)) {
+	continue;       // new or gone: covered by the event for an ancestor
+      }
+      final List<Object> path = getPath(parent);
+      boolean covered = false;
+      for (final Object ancestor : path) {
+	covered |= restructured.contains(ancestor);
+      }
+      if (!covered && diff(from, to, path, removed, inserted, changed)) {
+	restructured.add(parent);
+      }
+    }
+    if (removed.isEmpty() && inserted.isEmpty() && changed.isEmpty()) {
+      return null;
+    }
+
+    // Between the removals and the insertions, the model shows the old
+    // structure with the removed nodes taken out.
+    final Map<Object,ChildList> between = new IdentityHashMap<Object,ChildList>(from);
+    for (final TreeModelEvent e : removed) {
+      final Object parent = e.getTreePath().getLastPathComponent();
+      final Set<Object> gone = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+      gone.addAll(Arrays.asList(e.getChildren()));
+      final ChildList was = from.get(parent);
+      final List<Object> kept = new ArrayList<Object>(was.size() - gone.size());
+      for (int i = 0; i < was.size(); i++) {
+	if (!gone.contains(was.get(i))) {
+	  kept.add(was.get(i));
+	}
+      }
+      between.put(parent, new ChildList(kept));
+    }
+
+    return new Runnable() {
+      public void run() {
+	if (children != from) {
+	  // The structure was replaced since the diff was made.
+	  children = to;
+	  fireStructureChanged(Collections.singleton(new TreeModelEvent(FileSetTreeModel.this, new Object[]{fs})));
+	  return;
+	}
+	// Listeners may query the model while handling an event, so the model
+	// must already show the state that each event describes: the old
+	// structure less the removed nodes for the removals, then the new
+	// structure for the insertions and structure changes.
+	children = between;
+	for (final TreeModelEvent e : removed)
+	  for (final TreeModelListener l : listeners)
+	    l.treeNodesRemoved(e);
+	children = to;
+	for (final TreeModelEvent e : inserted)
+	  for (final TreeModelListener l : listeners)
+	    l.treeNodesInserted(e);
+	fireStructureChanged(changed);
+      }
+    };
+  }
+
+
+  /**
+   * Publishes the current structure of the FileSet to the listeners.  Off the
+   * event dispatch thread, waits until the listeners have been notified; the
+   * FileSet lock is not held while waiting, because removals take that lock
+   * on the event dispatch thread.
+   */
+  private void publish() {
+    final Runnable update;
+    synchronized (fs) {
+      if (disposed) {
+	return;
+      }
+      update = prepareUpdate();
+    }
+    if (null == update) {
+      return;
+    } else if (SwingUtilities.isEventDispatchThread()) {
+      update.run();
+      return;
+    }
+    try {
+      SwingUtilities.invokeAndWait(update);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (InvocationTargetException e) {
+      logger.error("unable to update file tree", e.getCause());
+    }
+  }
+
+
+  private void fireStructureChanged(final Collection<TreeModelEvent> es) {
+    for (final TreeModelEvent e : es)
+      for (final TreeModelListener l : listeners)
+	l.treeStructureChanged(e);
+  }
+
+
+  /**
+   * Progress through one batch of the files being added, reported as part
+   * of the progress through all of them.
+   */
+  private static final class BatchProgressMonitor implements ProgressMonitorI {
+    private final ProgressMonitorI pm;
+    private final int offset;
+
+    BatchProgressMonitor(final ProgressMonitorI pm, final int offset) {
+      this.pm = pm;
+      this.offset = offset;
+    }
+
+    public void setMinimum(final int min) {}
+
+    public void setMaximum(final int max) {}
+
+    public void setProgress(final int current) { pm.setProgress(offset + current); }
+
+    public void setNote(final String note) { pm.setNote(note); }
+
+    public boolean isCanceled() { return pm.isCanceled(); }
+
+    public void close() {}
   }
 
 
   /**
    * Add the listed files to the FileSet.  Must be invoked from outside the Swing event handler.
+   * Files are added in batches, and the patients, studies, and series found so far
+   * are shown in the tree every so often while the import continues.
    * @param files
    */
   public void add(final Collection<File> files) {
     assert !SwingUtilities.isEventDispatchThread();
 
+    final List<File> all = new ArrayList<File>();
+    for (final Iterator<File> i = new FileWalkIterator(files, null); i.hasNext(); ) {
+      final File f = i.next();
+      if (!AbstractFileExporter.isTempFile(f)) {	// left by an interrupted export
+	all.add(f);
+      }
+    }
+
     final ProgressMonitorI pn = SwingProgressMonitor.getMonitor(window, rsrcb.getString(READING_FILES),
-	"", 0, files.size());
+	"", 0, all.size());
 
     try {
-      fs.add(files.toArray(new File[0]), pn);
-      handleAdd();
+      long lastPublished = System.currentTimeMillis();
+      for (int start = 0; start < all.size() && !pn.isCanceled() && !disposed; start += FILES_PER_BATCH) {
+	final List<File> batch = all.subList(start, Math.min(all.size(), start + FILES_PER_BATCH));
+	synchronized (fs) {
+	  if (disposed) {
+	    break;
+	  }
+	  fs.add(batch.toArray(new File[0]), new BatchProgressMonitor(pn, start));
+	}
+	if (System.currentTimeMillis() - lastPublished >= PUBLISH_INTERVAL) {
+	  publish();
+	  lastPublished = System.currentTimeMillis();
+	}
+      }
+      publish();
     } catch (final Exception e) {
+      publish();	// show whatever was loaded before the failure
       SwingUtilities.invokeLater(new Runnable() {
 	public void run() {
 	  JOptionPane.showMessageDialog(window,
@@ -90,6 +653,17 @@ public final class FileSetTreeModel implements TreeModel {
     }
   }
 
+  /**
+   * Stops any import in progress and disposes of the FileSet.  An import
+   * that is reading a batch of files finishes that batch first.
+   */
+  public void dispose() {
+    disposed = true;
+    synchronized (fs) {
+      fs.dispose();
+    }
+  }
+
   /**
    * Remove the selection from the FileSet.
    * @param records Paths to be removed
@@ -97,21 +671,22 @@ public final class FileSetTreeModel implements TreeModel {
   public void remove(final Collection<TreePath> tps) {
     final Collection<DirectoryRecord> drs = new LinkedList<DirectoryRecord>();
     for (final TreePath tp : tps) {
-      drs.add((DirectoryRecord)tp.getLastPathComponent());
+      drs.addAll(getRecords(tp.getLastPathComponent()));
     }
-    fs.remove(drs);
-
-    final Collection<TreeModelEvent> es = new LinkedList<TreeModelEvent>();
-    for (final TreePath tp : tps) {
-      es.add(new TreeModelEvent(this, tp.getParentPath()));	// TODO: permit treeNodesRemoved
+    synchronized (fs) {
+      touched.add(fs);
+      for (final DirectoryRecord dr : drs) {
+	for (DirectoryRecord up = dr; null != up; up = up.getUpper()) {
+	  touched.add(up);
+	}
+      }
+      fs.remove(drs);
     }
 
-    // Separate extracting the TreePaths from notifying listeners; one of the
-    // listeners may be the caller, and may modify tps as a result of the
-    // notification.
-    for (TreeModelEvent e : es)
-      for (TreeModelListener l : listeners)
-	l.treeStructureChanged(e);
+    // The removals are published as treeNodesRemoved events on the parents;
+    // one of the listeners may be the caller, and may modify tps as a result
+    // of the notification, so tps is not used after this point.
+    publish();
   }
 
   /* (non-Javadoc)
@@ -119,32 +694,81 @@ public final class FileSetTreeModel implements TreeModel {
    */
   public void addTreeModelListener(final TreeModelListener l) { listeners.add(l); }
 
+  /**
+   * Gets the instances of a series as last published to the listeners, so it
+   * may be called on the event dispatch thread without the FileSet lock.
+   * @param series
+   * @return the instances, in FileSet order
+   */
+  List<DirectoryRecord> getInstances(final DirectoryRecord series) {
+    final ChildList c = children.get(series);
+    if (null == c) {
+      return Collections.emptyList();
+    } else if (null != c.grouped) {
+      return Collections.unmodifiableList(c.grouped);
+    }
+    final List<DirectoryRecord> instances = new ArrayList<DirectoryRecord>(c.size());
+    for (int i = 0; i < c.size(); i++) {
+      instances.add((DirectoryRecord)c.get(i));
+    }
+    return instances;
+  }
+
+  /**
+   * Gets the instances at or below a tree node as last published to the
+   * listeners, so it may be called without the FileSet lock.
+   * @param node tree node: the FileSet, a DirectoryRecord, or an instance range
+   * @return the instances
+   */
+  List<DirectoryRecord> getInstancesBelow(final Object node) {
+    final Map<Object,ChildList> snapshot = children;
+    final List<DirectoryRecord> instances = new ArrayList<DirectoryRecord>();
+    final LinkedList<Object> nodes = new LinkedList<Object>();
+    nodes.add(node);
+    while (!nodes.isEmpty()) {
+      final Object n = nodes.removeFirst();
+      if (n instanceof RecordRange) {
+	instances.addAll(((RecordRange)n).getInstances());
+      } else if (isLeaf(n)) {
+	instances.add((DirectoryRecord)n);
+      } else {
+	final ChildList c = snapshot.get(n);
+	for (int i = 0; null != c && i < c.size(); i++) {
+	  nodes.add(c.get(i));
+	}
+      }
+    }
+    return instances;
+  }
+
+  private ChildList getChildren(final Object parent) {
+    if (parent instanceof RecordRange) {
+      return ((RecordRange)parent).getChildList();
+    }
+    final ChildList c = children.get(parent);
+    return null == c ? NO_CHILDREN : c;
+  }
+
   /* (non-Javadoc)
    * @see javax.swing.tree.TreeModel#getChild(java.lang.Object, int)
    */
   public Object getChild(final Object parent, final int index) {
-    if (parent == fs)
-      return patients.get(index);
-    assert parent instanceof DirectoryRecord;
-    assert 0 <= index && index <= ((DirectoryRecord)parent).getLower().size();
-    return ((DirectoryRecord)parent).getLower().get(index);
+    assert parent == fs || parent instanceof DirectoryRecord || parent instanceof RecordRange;
+    return getChildren(parent).get(index);
   }
 
   /* (non-Javadoc)
    * @see javax.swing.tree.TreeModel#getChildCount(java.lang.Object)
    */
   public int getChildCount(final Object parent) {
-    return (parent == fs) ? patients.size() : ((DirectoryRecord)parent).getLower().size();
+    return getChildren(parent).size();
   }
 
   /* (non-Javadoc)
    * @see javax.swing.tree.TreeModel#getIndexOfChild(java.lang.Object, java.lang.Object)
    */
   public int getIndexOfChild(final Object parent, final Object child) {
-    if (parent == fs)
-      return patients.indexOf(child);
-    else
-      return ((DirectoryRecord)parent).getLower().indexOf(child);
+    return getChildren(parent).indexOf(child);
   }
 
   /* (non-Javadoc)
@@ -26,11 +26,11 @@ import org.nrg.dcm.edit.SessionVariablePanel;
 import org.nrg.dcm.edit.Statement;
 import org.nrg.dcm.io.AdjacentDirFileExporter;
 import org.nrg.dcm.io.AdjacentFileExporter;
-import org.nrg.dcm.io.BatchExporter;
 import org.nrg.dcm.io.DicomObjectExporter;
 import org.nrg.dcm.io.MultifileExporter;
 import org.nrg.dcm.io.NewRootFileExporter;
 import org.nrg.dcm.io.OverwriteFileExporter;
+import org.nrg.dcm.io.ParallelBatchExporter;
 import org.nrg.io.FileWalkIterator;
 import org.nrg.util.EditProgressMonitor;
 import org.slf4j.Logger;
@@ -49,11 +49,13 @@ public class FileTreeExporter implements MultifileExporter {
     private final ExecutorService executor;
     private final File source;
     private final List<Statement> statements = Lists.newArrayList();
+    private final int parallelism;
     
     public FileTreeExporter(final Component parent, final Preferences prefs, final ExecutorService executor, final File root) {
         this.parent = parent;
         this.executor = executor;
         this.source = root;
+        this.parallelism = prefs.getInt(DicomBrowser.EXPORT_THREADS_PREF, DicomBrowser.DEFAULT_EXPORT_THREADS);
         
         final JFileChooser scriptChooser = new JFileChooser(prefs.get(DicomBrowser.SCRIPT_DIR_PREF, null));
         scriptChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
@@ -97,7 +99,8 @@ public class FileTreeExporter implements MultifileExporter {
         final EditProgressMonitor pm = SwingProgressMonitor.getMonitor(parent,
                 rsrcb.getString(COPYING_FILES), "", 0, 0);
 
-        final BatchExporter batch = new BatchExporter(exporter, statements, new FileWalkIterator(source, pm));
+        final ParallelBatchExporter batch = new ParallelBatchExporter(exporter, statements, new FileWalkIterator(source, pm));
+        batch.setParallelism(parallelism, parallelism);
         batch.setProgressMonitor(pm, 0);
         executor.execute(new ExportFailureHandler(batch, parent));
     }
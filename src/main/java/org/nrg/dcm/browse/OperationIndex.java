@@ -0,0 +1,327 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.browse;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.nrg.dcm.edit.Operation;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Index of the Operations assigned to (attribute, file) pairs.
+ * Files are interned to small integer ids.  Each tag, keyed by primitive int,
+ * keeps a palette of the distinct Operations assigned to it and an array mapping
+ * file id to palette entry, so the index costs a few bytes per file per modified
+ * attribute rather than a HashMap entry.  Each tag also caches its summary over
+ * the most recently queried Selection, so repeated queries for the same selection
+ * are constant time.
+ * All methods are thread safe.
+ */
+final class OperationIndex {
+    private static final int[] NO_IDS = {};
+
+    /**
+     * Operation assigned to one attribute across a selection of files:
+     * either a single Operation (null for the implicit Keep) or mixed.
+     */
+    static final class Summary {
+        static final Summary KEEP = new Summary(null, false);
+        static final Summary MIXED = new Summary(null, true);
+
+        private final Operation op;
+        private final boolean mixed;
+
+        private Summary(final Operation op, final boolean mixed) {
+            this.op = op;
+            this.mixed = mixed;
+        }
+
+        /**
+         * @return true if different files in the selection have different operations
+         */
+        boolean isMixed() { return mixed; }
+
+        /**
+         * @return the Operation applied to every file in the selection, or null
+         *  if the files have no operation (implicit Keep) or mixed operations
+         */
+        Operation getOperation() { return op; }
+    }
+
+    /**
+     * Immutable set of interned files.
+     */
+    static final class Selection {
+        private final BitSet ids;
+        private final int size;
+
+        private Selection(final BitSet ids) {
+            this.ids = ids;
+            this.size = ids.cardinality();
+        }
+
+        int size() { return size; }
+    }
+
+    private static final class TagOperations {
+        private final List<Operation> palette = Lists.newArrayList();
+        private final Map<Operation,Integer> paletteIndex = Maps.newHashMap();
+        private int[] paletteCounts = new int[4];
+        private int[] assigned = NO_IDS;   // palette index + 1, by file id; 0 for no operation
+        private int count = 0;              // number of files with an operation
+        private Selection summarized = null;
+        private Summary summary = null;
+
+        Operation get(final int id) {
+            return id < assigned.length && 0 != assigned[id] ? palette.get(assigned[id] - 1) : null;
+        }
+
+        private int getPaletteEntry(final Operation op) {
+            final Integer i = paletteIndex.get(op);
+            if (null != i) {
+                return i;
+            }
+            // Reuse an entry that no file refers to anymore, if there is one.
+            for (int j = 0; j < palette.size(); j++) {
+                if (0 == paletteCounts[j]) {
+                    paletteIndex.remove(palette.get(j));
+                    palette.set(j, op);
+                    paletteIndex.put(op, j);
+                    return j;
+                }
+            }
+            final int j = palette.size();
+            palette.add(op);
+            paletteIndex.put(op, j);
+            if (j >= paletteCounts.length) {
+                paletteCounts = Arrays.copyOf(paletteCounts, 2 * paletteCounts.length);
+            }
+            return j;
+        }
+
+        Operation put(final int id, final Operation op) {
+            if (id >= assigned.length) {
+                assigned = Arrays.copyOf(assigned, Math.max(id + 1, 2 * assigned.length));
+            }
+            final Operation replaced = remove(id);
+            final int entry = getPaletteEntry(op);
+            assigned[id] = entry + 1;
+            paletteCounts[entry]++;
+            count++;
+            summary = null;
+            return replaced;
+        }
+
+        Operation remove(final int id) {
+            if (id >= assigned.length || 0 == assigned[id]) {
+                return null;
+            }
+            final int entry = assigned[id] - 1;
+            assigned[id] = 0;
+            paletteCounts[entry]--;
+            count--;
+            summary = null;
+            return palette.get(entry);
+        }
+
+        boolean isEmpty() { return 0 == count; }
+
+        Summary summarize(final Selection selection) {
+            if (selection == summarized && null != summary) {
+                return summary;
+            }
+            if (0 == count) {
+                summary = Summary.KEEP;
+            } else {
+                int common = -1;
+                summary = null;
+                for (int id = selection.ids.nextSetBit(0); id >= 0; id = selection.ids.nextSetBit(id + 1)) {
+                    final int entry = id < assigned.length ? assigned[id] : 0;
+                    if (common < 0) {
+                        common = entry;
+                    } else if (common != entry) {
+                        summary = Summary.MIXED;
+                        break;
+                    }
+                }
+                if (null == summary) {
+                    summary = common <= 0 ? Summary.KEEP : new Summary(palette.get(common - 1), false);
+                }
+            }
+            summarized = selection;
+            return summary;
+        }
+    }
+
+    private final Map<File,Integer> ids = Maps.newHashMap();
+    private final List<File> files = Lists.newArrayList();
+    private int[] tags = new int[8];                // sorted; only the first ntags are used
+    private TagOperations[] byTag = new TagOperations[8];
+    private int ntags = 0;
+
+    private int intern(final File file) {
+        final Integer id = ids.get(file);
+        if (null != id) {
+            return id;
+        }
+        final int newId = files.size();
+        files.add(file);
+        ids.put(file, newId);
+        return newId;
+    }
+
+    private TagOperations getTag(final int tag) {
+        final int i = Arrays.binarySearch(tags, 0, ntags, tag);
+        return i < 0 ? null : byTag[i];
+    }
+
+    private TagOperations getOrCreateTag(final int tag) {
+        final int i = Arrays.binarySearch(tags, 0, ntags, tag);
+        if (i >= 0) {
+            return byTag[i];
+        }
+        final int insert = -(i + 1);
+        if (ntags == tags.length) {
+            tags = Arrays.copyOf(tags, 2 * tags.length);
+            byTag = Arrays.copyOf(byTag, 2 * byTag.length);
+        }
+        System.arraycopy(tags, insert, tags, insert + 1, ntags - insert);
+        System.arraycopy(byTag, insert, byTag, insert + 1, ntags - insert);
+        tags[insert] = tag;
+        byTag[insert] = new TagOperations();
+        ntags++;
+        return byTag[insert];
+    }
+
+    private void removeTag(final int tag) {
+        final int i = Arrays.binarySearch(tags, 0, ntags, tag);
+        if (i >= 0) {
+            System.arraycopy(tags, i + 1, tags, i, ntags - i - 1);
+            System.arraycopy(byTag, i + 1, byTag, i, ntags - i - 1);
+            byTag[--ntags] = null;
+        }
+    }
+
+    /**
+     * Builds a Selection for the given files.
+     * @param selected
+     * @return Selection object usable for summaries
+     */
+    synchronized Selection select(final Iterable<File> selected) {
+        final BitSet bits = new BitSet(files.size());
+        for (final File file : selected) {
+            bits.set(intern(file));
+        }
+        return new Selection(bits);
+    }
+
+    /**
+     * Assigns an Operation to an attribute in a file.
+     * @return the Operation previously assigned to this tag and file, or null if none
+     */
+    synchronized Operation put(final int tag, final File file, final Operation op) {
+        return getOrCreateTag(tag).put(intern(file), op);
+    }
+
+    /**
+     * @return the Operation assigned to this tag and file, or null if none
+     */
+    synchronized Operation get(final int tag, final File file) {
+        final TagOperations ops = getTag(tag);
+        final Integer id = ids.get(file);
+        return null == ops || null == id ? null : ops.get(id);
+    }
+
+    /**
+     * Removes any Operation assigned to the indicated tag and file.
+     * @return the removed Operation, or null if there was none
+     */
+    synchronized Operation remove(final int tag, final File file) {
+        final TagOperations ops = getTag(tag);
+        final Integer id = ids.get(file);
+        if (null == ops || null == id) {
+            return null;
+        }
+        final Operation removed = ops.remove(id);
+        if (ops.isEmpty()) {
+            removeTag(tag);
+        }
+        return removed;
+    }
+
+    /**
+     * @return true if any file has an Operation on the indicated tag
+     */
+    synchronized boolean containsTag(final int tag) {
+        return null != getTag(tag);
+    }
+
+    /**
+     * @return all tags that have an Operation on some file, in increasing order
+     */
+    synchronized int[] getTags() {
+        return Arrays.copyOf(tags, ntags);
+    }
+
+    /**
+     * @return the Operations assigned to the given file, by tag
+     */
+    synchronized SortedMap<Integer,Operation> getOperations(final File file) {
+        final SortedMap<Integer,Operation> ops = Maps.newTreeMap();
+        final Integer id = ids.get(file);
+        if (null != id) {
+            for (int i = 0; i < ntags; i++) {
+                final Operation op = byTag[i].get(id);
+                if (null != op) {
+                    ops.put(tags[i], op);
+                }
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * @return the files to which each Operation is assigned
+     */
+    synchronized SetMultimap<Operation,File> getFilesByOperation() {
+        final SetMultimap<Operation,File> ops = LinkedHashMultimap.create();
+        for (int i = 0; i < ntags; i++) {
+            final TagOperations tagops = byTag[i];
+            for (int id = 0; id < tagops.assigned.length; id++) {
+                final Operation op = tagops.get(id);
+                if (null != op) {
+                    ops.put(op, files.get(id));
+                }
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Summarizes the Operations assigned to an attribute over a selection.
+     * @param tag
+     * @param selection
+     * @return the single Operation over the selection, implicit Keep, or mixed
+     */
+    synchronized Summary summarize(final int tag, final Selection selection) {
+        final TagOperations ops = getTag(tag);
+        return null == ops ? Summary.KEEP : ops.summarize(selection);
+    }
+
+    synchronized void clear() {
+        Arrays.fill(byTag, 0, ntags, null);
+        ntags = 0;
+        ids.clear();
+        files.clear();
+    }
+}
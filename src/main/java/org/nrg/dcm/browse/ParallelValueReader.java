@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.browse;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nrg.dcm.ProgressMonitorI;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Gathers attribute values from many files on a bounded pool of worker threads.
+ * The file list is split into chunks; each chunk is read into its own tag-&gt;values
+ * multimap, and the chunk results are merged back in file order, so the merged
+ * values are the same as a sequential read would have produced.
+ */
+final class ParallelValueReader {
+    private static final int MIN_CHUNK_SIZE = 16;
+    private static final int MAX_CHUNK_SIZE = 256;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final long POLL_INTERVAL = 200;   // ms
+
+    /**
+     * Values read from some set of files, with the tags modified by operations.
+     */
+    static final class Values {
+        final SetMultimap<Integer,String> vals = LinkedHashMultimap.create();
+        final Set<Integer> modified = Sets.newLinkedHashSet();
+
+        void addAll(final Values other) {
+            vals.putAll(other.vals);
+            modified.addAll(other.modified);
+        }
+    }
+
+    /**
+     * Reads the values from a single file.  Implementations must be thread safe,
+     * and should handle (typically, log and skip) any per-file read failures.
+     */
+    interface ValueSource {
+        void read(File file, Values values);
+    }
+
+    private final ExecutorService workers;
+    private final int parallelism;
+
+    ParallelValueReader(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.workers = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "value-reader-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private final class Chunk implements Callable<Values> {
+        private final List<File> files;
+        private final ValueSource source;
+        private final ProgressMonitorI pm;
+        private final AtomicInteger progress;
+        private final AtomicBoolean stopped;
+
+        Chunk(final List<File> files, final ValueSource source, final ProgressMonitorI pm,
+                final AtomicInteger progress, final AtomicBoolean stopped) {
+            this.files = files;
+            this.source = source;
+            this.pm = pm;
+            this.progress = progress;
+            this.stopped = stopped;
+        }
+
+        public Values call() {
+            final Values values = new Values();
+            for (final File file : files) {
+                if (stopped.get() || pm.isCanceled()) {
+                    break;
+                }
+                source.read(file, values);
+                pm.setProgress(progress.incrementAndGet());
+            }
+            return values;
+        }
+    }
+
+    private int getChunkSize(final int nfiles) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, nfiles / (parallelism * CHUNKS_PER_THREAD)));
+    }
+
+    private static void cancel(final Iterable<Future<Values>> futures, final AtomicBoolean stopped) {
+        stopped.set(true);
+        for (final Future<Values> f : futures) {
+            f.cancel(false);    // don't interrupt: the FileSet database doesn't take well to that
+        }
+    }
+
+    private static Values getResult(final Future<Values> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Reads values from the given files into the provided accumulator.
+     * Must not be called from the Swing event dispatch thread.
+     * @param files files to be read
+     * @param source reads the values from each file
+     * @param pm progress monitor; progress is reported as the number of files read
+     * @param into accumulator for the merged values
+     * @param onMerge run (in the calling thread) each time more chunk results
+     *                have been merged into the accumulator
+     * @return true if all files were read, false if the read was canceled
+     * @throws OutOfMemoryError if any worker ran out of memory; the values read
+     *                before the failure are left in the accumulator
+     */
+    boolean read(final List<File> files, final ValueSource source, final ProgressMonitorI pm,
+            final Values into, final Runnable onMerge) {
+        final CompletionService<Values> ecs = new ExecutorCompletionService<Values>(workers);
+        final AtomicInteger progress = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final Map<Future<Values>,Integer> indices = Maps.newHashMap();
+
+        final int chunkSize = getChunkSize(files.size());
+        int nchunks = 0;
+        for (int start = 0; start < files.size(); start += chunkSize) {
+            final List<File> chunk = files.subList(start, Math.min(files.size(), start + chunkSize));
+            indices.put(ecs.submit(new Chunk(chunk, source, pm, progress, stopped)), nchunks++);
+        }
+
+        final Map<Integer,Values> completed = Maps.newHashMap();
+        int next = 0;
+        try {
+            for (int remaining = nchunks; remaining > 0; ) {
+                if (pm.isCanceled()) {
+                    cancel(indices.keySet(), stopped);
+                    return false;
+                }
+                final Future<Values> f = ecs.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (null == f) {
+                    continue;
+                }
+                remaining--;
+                completed.put(indices.get(f), getResult(f));
+
+                // Merge in file order; later chunks wait until their predecessors are in.
+                boolean merged = false;
+                while (completed.containsKey(next)) {
+                    into.addAll(completed.remove(next++));
+                    merged = true;
+                }
+                if (merged) {
+                    onMerge.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel(indices.keySet(), stopped);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException e) {
+            cancel(indices.keySet(), stopped);
+            throw e;
+        } catch (Error e) {
+            cancel(indices.keySet(), stopped);
+            throw e;
+        }
+        return !pm.isCanceled();
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.browse;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Downsampled previews of series: the middle slice, and a mosaic of slices
+ * evenly spaced through the series.  Previews are saved as PNG files under
+ * the cache root, named by a digest of the Series Instance UID and the path,
+ * size, and modification time of every file in the series, so a series whose
+ * files change gets new previews.  The preview files are limited in total size,
+ * and those least recently used are deleted to make room for new ones.  The
+ * most recently used previews are also kept in memory.
+ * Instances are thread safe.
+ */
+final class PreviewCache {
+    static final int PREVIEW_SIZE = 256;
+    static final int TILE_SIZE = 64;
+    static final int MAX_TILES = 16;
+    private static final int MAX_IN_MEMORY = 32;
+    private static final long DEFAULT_MAX_DISK_BYTES = 64L * 1024 * 1024;
+    private static final String PREVIEW_SUFFIX = ".preview.png";
+    private static final String MOSAIC_SUFFIX = ".mosaic.png";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Logger logger = LoggerFactory.getLogger(PreviewCache.class);
+    private final File root;
+    private final long maxDiskBytes;
+    private final Map<String,Previews> recent = new LinkedHashMap<String,Previews>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String,Previews> eldest) {
+            return size() > MAX_IN_MEMORY;
+        }
+    };
+
+    /**
+     * Previews for one series.
+     */
+    static final class Previews {
+        final BufferedImage preview, mosaic;
+
+        Previews(final BufferedImage preview, final BufferedImage mosaic) {
+            this.preview = preview;
+            this.mosaic = mosaic;
+        }
+    }
+
+    /**
+     * @param root directory containing the preview files
+     * @param maxDiskBytes maximum total size of the preview files
+     */
+    PreviewCache(final File root, final long maxDiskBytes) {
+        this.root = root;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    PreviewCache(final File root) {
+        this(root, DEFAULT_MAX_DISK_BYTES);
+    }
+
+    /**
+     * @return the default cache root, in the user's home directory
+     */
+    static File getDefaultRoot() {
+        return new File(new File(System.getProperty("user.home"), ".DicomBrowser"), "previews");
+    }
+
+    private static String getKey(final String seriesUID, final List<File> files) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // every Java platform has SHA-1
+        }
+        digest.update(String.valueOf(seriesUID).getBytes(UTF8));
+        for (final File file : files) {
+            digest.update((byte)0);
+            digest.update(String.format("%s:%d:%d", file.getPath(), file.length(), file.lastModified()).getBytes(UTF8));
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the previews for a series, from memory or disk if they are
+     * current, or else by decoding slices of the series.  This may be slow,
+     * so it shouldn't be called on the event dispatch thread.
+     * @param seriesUID Series Instance UID
+     * @param files slice files, in slice order
+     * @return previews
+     * @throws IOException if no slice could be decoded
+     */
+    Previews get(final String seriesUID, final List<File> files) throws IOException {
+        final String key = getKey(seriesUID, files);
+        synchronized (recent) {
+            final Previews cached = recent.get(key);
+            if (null != cached) {
+                return cached;
+            }
+        }
+
+        final File previewFile = new File(root, key + PREVIEW_SUFFIX);
+        final File mosaicFile = new File(root, key + MOSAIC_SUFFIX);
+        Previews previews = null;
+        if (previewFile.isFile() && mosaicFile.isFile()) {
+            try {
+                final BufferedImage preview = ImageIO.read(previewFile);
+                final BufferedImage mosaic = ImageIO.read(mosaicFile);
+                if (null != preview && null != mosaic) {
+                    previews = new Previews(preview, mosaic);
+                    final long now = System.currentTimeMillis();
+                    previewFile.setLastModified(now);   // recently used, so evicted last
+                    mosaicFile.setLastModified(now);
+                }
+            } catch (IOException e) {
+                logger.debug("unable to read previews for " + seriesUID, e);
+            }
+        }
+        if (null == previews) {
+            previews = new Previews(makePreview(files), makeMosaic(files));
+            try {
+                write(previews.preview, previewFile);
+                write(previews.mosaic, mosaicFile);
+            } catch (IOException e) {
+                logger.info("unable to save previews for " + seriesUID, e);
+            }
+            evict();
+        }
+        synchronized (recent) {
+            recent.put(key, previews);
+        }
+        return previews;
+    }
+
+    private void write(final BufferedImage image, final File file) throws IOException {
+        root.mkdirs();
+        final File temp = File.createTempFile(file.getName() + ".", ".tmp", root);
+        try {
+            if (!ImageIO.write(image, "png", temp)) {
+                throw new IOException("no PNG writer available");
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();  // no-op once moved
+        }
+    }
+
+    /**
+     * Deletes the least recently used preview files until the total size of
+     * those left is within the limit.
+     */
+    private synchronized void evict() {
+        final File[] files = root.listFiles(new FileFilter() {
+            public boolean accept(final File f) {
+                return f.isFile() && (f.getName().endsWith(PREVIEW_SUFFIX) || f.getName().endsWith(MOSAIC_SUFFIX));
+            }
+        });
+        if (null == files) {
+            return;
+        }
+        final long[] sizes = new long[files.length], times = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            sizes[i] = files[i].length();
+            times[i] = files[i].lastModified();
+            order[i] = i;
+            total += sizes[i];
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(final Integer a, final Integer b) {
+                return times[a] < times[b] ? -1 : times[a] > times[b] ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < order.length && total > maxDiskBytes; i++) {
+            if (files[order[i]].delete()) {
+                total -= sizes[order[i]];
+            }
+        }
+    }
+
+    /**
+     * Decodes one slice and scales it, with averaging, to fit in a square of
+     * the given size, as 8-bit gray scaled by the slice's display range.
+     */
+    private static ImageProcessor decode(final File file, final int size) throws IOException {
+        final ImagePlus image = ViewSlicesAction.open(file);
+        final ImageProcessor ip = image.getProcessor();
+        if (null == ip || 0 == image.getWidth() || 0 == image.getHeight()) {
+            throw new IOException("unable to decode " + file);
+        }
+        final ImageProcessor gray = ip.convertToByte(true);
+        final double scale = Math.min(1.0, (double)size / Math.max(gray.getWidth(), gray.getHeight()));
+        if (scale >= 1.0) {
+            return gray;
+        }
+        gray.setInterpolationMethod(ImageProcessor.BILINEAR);
+        return gray.resize(Math.max(1, (int)Math.round(scale * gray.getWidth())),
+                Math.max(1, (int)Math.round(scale * gray.getHeight())), true);
+    }
+
+    private BufferedImage makePreview(final List<File> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IOException("series has no files");
+        }
+        return decode(files.get(files.size() / 2), PREVIEW_SIZE).getBufferedImage();
+    }
+
+    private BufferedImage makeMosaic(final List<File> files) throws IOException {
+        final int ntiles = Math.min(MAX_TILES, files.size());
+        final int columns = (int)Math.ceil(Math.sqrt(ntiles));
+        final int rows = (ntiles + columns - 1) / columns;
+        final ByteProcessor mosaic = new ByteProcessor(columns * TILE_SIZE, rows * TILE_SIZE);
+        int decoded = 0;
+        for (int i = 0; i < ntiles; i++) {
+            final File file = files.get((2 * i + 1) * files.size() / (2 * ntiles));
+            final ImageProcessor tile;
+            try {
+                tile = decode(file, TILE_SIZE);
+            } catch (IOException e) {
+                logger.debug("leaving mosaic tile empty", e);
+                continue;
+            }
+            mosaic.insert(tile, (i % columns) * TILE_SIZE + (TILE_SIZE - tile.getWidth()) / 2,
+                    (i / columns) * TILE_SIZE + (TILE_SIZE - tile.getHeight()) / 2);
+            decoded++;
+        }
+        if (0 == decoded) {
+            throw new IOException("unable to decode any slice of the series");
+        }
+        return mosaic.getBufferedImage();
+    }
+}
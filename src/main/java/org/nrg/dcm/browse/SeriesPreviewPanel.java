@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.browse;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.ImageIcon;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTree;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeSelectionListener;
+import javax.swing.tree.TreePath;
+
+import org.dcm4che2.data.Tag;
+import org.nrg.dcm.DirectoryRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Shows the middle-slice preview and the mosaic of the selected series, if
+ * exactly one series is selected in the tree.  Previews are made or loaded
+ * from the cache on a background thread; a selection that changes before its
+ * previews are ready is dropped.
+ */
+final class SeriesPreviewPanel extends JPanel implements TreeSelectionListener {
+    private static final long serialVersionUID = 1L;
+    private static final String LOADING = "Loading preview...";  // TODO: localize
+    private static final String NO_PREVIEW = "No preview available";    // TODO: localize
+
+    private final Logger logger = LoggerFactory.getLogger(SeriesPreviewPanel.class);
+    private final FileSetTreeModel model;
+    private final PreviewCache cache;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "series-preview");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    private final JLabel preview = new JLabel("", SwingConstants.CENTER);
+    private final JLabel mosaic = new JLabel("", SwingConstants.CENTER);
+    private volatile int generation = 0;   // modified only on the event dispatch thread
+
+    /**
+     * @param model tree model from which series instances are taken
+     * @param cache
+     */
+    SeriesPreviewPanel(final FileSetTreeModel model, final PreviewCache cache) {
+        super(new BorderLayout());
+        this.model = model;
+        this.cache = cache;
+        add(preview, BorderLayout.CENTER);
+        add(mosaic, BorderLayout.SOUTH);
+        setPreferredSize(new Dimension(PreviewCache.PREVIEW_SIZE,
+                PreviewCache.PREVIEW_SIZE + 2 * PreviewCache.TILE_SIZE));
+    }
+
+    private void clear(final String text) {
+        preview.setIcon(null);
+        preview.setText(text);
+        mosaic.setIcon(null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see javax.swing.event.TreeSelectionListener#valueChanged(javax.swing.event.TreeSelectionEvent)
+     */
+    public void valueChanged(final TreeSelectionEvent e) {
+        final int g = ++generation;
+        final TreePath[] paths = e.getSource() instanceof JTree ? ((JTree)e.getSource()).getSelectionPaths() : null;
+        final Object node = null != paths && 1 == paths.length ? paths[0].getLastPathComponent() : null;
+        if (!(node instanceof DirectoryRecord) || DirectoryRecord.Type.SERIES != ((DirectoryRecord)node).getType()) {
+            clear("");
+            return;
+        }
+
+        final DirectoryRecord series = (DirectoryRecord)node;
+        final String uid = series.getValue(Tag.SeriesInstanceUID);
+        final List<DirectoryRecord> instances = Lists.newArrayList();
+        // The model's snapshot, not the FileSet, which may be changing
+        for (final DirectoryRecord dr : model.getInstances(series)) {
+            if (null != dr.getValue(Tag.ReferencedFileID)) {
+                instances.add(dr);
+            }
+        }
+        final List<File> files = ViewSlicesAction.sortSlices(instances);
+        clear(LOADING);
+
+        executor.execute(new Runnable() {
+            public void run() {
+                if (g != generation) {
+                    return;     // selection already changed
+                }
+                PreviewCache.Previews previews = null;
+                try {
+                    previews = cache.get(uid, files);
+                } catch (IOException e) {
+                    logger.debug("no preview for series " + uid, e);
+                } catch (RuntimeException e) {
+                    logger.info("unable to make preview for series " + uid, e);
+                }
+                final PreviewCache.Previews result = previews;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (g != generation) {
+                            return;
+                        } else if (null == result) {
+                            clear(NO_PREVIEW);
+                        } else {
+                            preview.setText(null);
+                            preview.setIcon(new ImageIcon(result.preview));
+                            mosaic.setIcon(new ImageIcon(result.mosaic));
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
@@ -6,6 +6,7 @@ package org.nrg.dcm.browse;
 
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
@@ -56,11 +57,17 @@ public class StatusBar extends JComponent {
     tasks = new LinkedList<TaskMonitor>();
   }
   
+  /**
+   * Progress of one task.  Updates are coalesced: each setter records the
+   * new value, and at most one update of the status bar is queued on the
+   * event dispatch thread at a time, applying the latest values when it runs.
+   */
   public class TaskMonitor implements ProgressMonitorI {
-    private boolean canceledp;
-    private String note;
+    private volatile boolean canceledp;
+    private volatile String note;
     private final String done;
-    private int min, max, progress;
+    private volatile int min, max, progress;
+    private final AtomicBoolean updatePending = new AtomicBoolean(false);
     
     private TaskMonitor(final int min, final int max, final String done) {
       this.min = min;
@@ -122,30 +129,40 @@ public class StatusBar extends JComponent {
     public boolean isCanceled() { return canceledp; }
     
     /**
-     * This method is thread safe.
+     * Queues an update of the status bar, unless one is already queued.
      */
-    public void setMinimum(final int m) {
-      min = m;
-      if (tasks.peek() == this) {
+    private void update() {
+      if (!updatePending.getAndSet(true)) {
 	SwingUtilities.invokeLater(new Runnable() {
-	  public void run() { progressBar.setMinimum(min); }
+	  public void run() {
+	    updatePending.set(false);
+	    if (tasks.peek() == TaskMonitor.this) {
+	      progressBar.setMinimum(min);
+	      progressBar.setMaximum(max);
+	      progressBar.setValue(progress);
+	      text.setText(note);
+	    }
+	    if (progress >= max)
+	      TaskMonitor.this.close();
+	  }
 	});
       }
     }
+
+    /**
+     * This method is thread safe.
+     */
+    public void setMinimum(final int m) {
+      min = m;
+      update();
+    }
     
     /**
      * This method is thread safe.
      */
     public void setMaximum(final int m) {
       max = m;
-      SwingUtilities.invokeLater(new Runnable() {
-	public void run() {
-	  if (tasks.peek() == TaskMonitor.this)
-	    progressBar.setMaximum(max);
-	  if (progressBar.getValue() >= max)
-	    TaskMonitor.this.close();
-	}
-      });
+      update();
     }
     
     /**
@@ -153,14 +170,7 @@ public class StatusBar extends JComponent {
      */
     public void setProgress(final int p) {
       progress = p;
-      SwingUtilities.invokeLater(new Runnable() {
-	public void run() {
-	      if (tasks.peek() == TaskMonitor.this)
-	        progressBar.setValue(progress);
-	      if (progress >= progressBar.getMaximum())
-	        TaskMonitor.this.close();
-	}
-      });
+      update();
     }
     
     /**
@@ -168,12 +178,7 @@ public class StatusBar extends JComponent {
      */
     public void setNote(final String s) {
       note = s;
-      if (tasks.peek() == this)
-	SwingUtilities.invokeLater(new Runnable() {
-	  public void run() {
-	    text.setText(note);
-	  }
-	});
+      update();
     }
   }
   
@@ -4,10 +4,16 @@
 package org.nrg.dcm.browse;
 
 import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import org.nrg.dcm.ProgressMonitorI;
 import org.nrg.util.EditProgressMonitor;
@@ -18,13 +24,24 @@ import org.slf4j.LoggerFactory;
 /**
  * Swing ProgressMonitor implementing ProgressMonitorI interface
  * All methods are thread safe.
+ * Updates are coalesced: the setters only record the latest values, which a
+ * Swing timer copies to the ProgressMonitor at a fixed rate.  The timer also
+ * samples the cancellation state, so isCanceled() doesn't wait on the event
+ * dispatch thread.
  * @author Kevin A. Archie <karchie@wustl.edu>
  */
 public final class SwingProgressMonitor implements
 ProgressMonitorI,EditProgressMonitor {
+    private static final int UPDATE_INTERVAL = 33;  // ms, or about 30 Hz
+
     private final Logger logger = LoggerFactory.getLogger(SwingProgressMonitor.class);
     private final ProgressMonitor pm;
     private final String message;
+    private final AtomicInteger min, max, progress;
+    private final AtomicReference<String> note;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private volatile boolean canceled = false, closed = false;
+    private final Timer timer;
 
     private static abstract class ReturnRunnable<T> implements Runnable {
         T r = null;
@@ -35,9 +52,42 @@ ProgressMonitorI,EditProgressMonitor {
         assert SwingUtilities.isEventDispatchThread();
         pm = new ProgressMonitor(parent, message, note, min, max);
         this.message = null == message ? null : message.toString();
+        this.min = new AtomicInteger(min);
+        this.max = new AtomicInteger(max);
+        this.progress = new AtomicInteger(min);
+        this.note = new AtomicReference<String>(note);
+        timer = new Timer(UPDATE_INTERVAL, new ActionListener() {
+            public void actionPerformed(final ActionEvent e) {
+                update();
+            }
+        });
+        timer.start();
         logger.trace("Created {}", this);
     }
 
+    /**
+     * Copies the latest values to the ProgressMonitor.  Runs on the event
+     * dispatch thread.
+     */
+    private void update() {
+        if (closed) {
+            timer.stop();
+            pm.close();
+            return;
+        }
+        if (dirty.getAndSet(false)) {
+            pm.setMinimum(min.get());
+            pm.setMaximum(max.get());
+            pm.setNote(note.get());
+            pm.setProgress(progress.get());
+        }
+        canceled = pm.isCanceled();
+    }
+
+    private void changed() {
+        dirty.set(true);
+    }
+
     /*
      * (non-Javadoc)
      * @see java.lang.Object#toString()
@@ -45,8 +95,8 @@ ProgressMonitorI,EditProgressMonitor {
     public String toString() {
         final StringBuilder sb = new StringBuilder(super.toString());
         sb.append(" ").append(message);
-        sb.append(" [").append(pm.getMinimum()).append("-");
-        sb.append(pm.getMaximum()).append("]");
+        sb.append(" [").append(min.get()).append("-");
+        sb.append(max.get()).append("]");
         return sb.toString();
     }
 
@@ -83,9 +133,8 @@ ProgressMonitorI,EditProgressMonitor {
      */
     public void setMinimum(final int m) { 
         logger.trace("{} minimum <- {}", this, m);
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() { pm.setMinimum(m); }
-        });
+        min.set(m);
+        changed();
     }
 
     /*
@@ -94,9 +143,8 @@ ProgressMonitorI,EditProgressMonitor {
      */
     public void setMaximum(final int m) {
         logger.trace("{} maximum <- {}", this, m);
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() { pm.setMaximum(m); }
-        });
+        max.set(m);
+        changed();
     }
 
     /*
@@ -105,9 +153,8 @@ ProgressMonitorI,EditProgressMonitor {
      */
     public void setProgress(final int nv) {
         logger.trace("{} progress <- {}", this, nv);
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() { pm.setProgress(nv); }
-        });
+        progress.set(nv);
+        changed();
     }
 
     /*
@@ -116,9 +163,8 @@ ProgressMonitorI,EditProgressMonitor {
      */
     public void setNote(final String note) {
         logger.trace("{} note <- {}", this, note);
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() { pm.setNote(note); }
-        });
+        this.note.set(note);
+        changed();
     }
 
     /*
@@ -127,20 +173,9 @@ ProgressMonitorI,EditProgressMonitor {
      */
     public boolean isCanceled() {
         if (SwingUtilities.isEventDispatchThread()) {
-            return pm.isCanceled();
+            return canceled = pm.isCanceled();
         } else {
-            final ReturnRunnable<Boolean> check = new ReturnRunnable<Boolean>() {
-                public void run() { r = pm.isCanceled(); }
-            };
-
-            try {
-                SwingUtilities.invokeAndWait(check);
-            } catch (InterruptedException e) {
-                return false;
-            } catch (InvocationTargetException e) {
-                return false;
-            }
-            return check.r;
+            return canceled;    // as of the last timer update
         }
     }
 
@@ -150,8 +185,9 @@ ProgressMonitorI,EditProgressMonitor {
      */
     public void close() {
         logger.trace("{} close", this);
+        closed = true;
         SwingUtilities.invokeLater(new Runnable() {
-            public void run() { pm.close(); }
+            public void run() { update(); }
         });
     }
 }
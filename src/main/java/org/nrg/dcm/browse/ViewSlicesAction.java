@@ -3,22 +3,39 @@
  */
 package org.nrg.dcm.browse;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 
 import java.awt.event.ActionEvent;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 
 import javax.swing.AbstractAction;
 import javax.swing.SwingUtilities;
@@ -31,10 +48,10 @@ import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.plugin.DICOM;
 
 import org.nrg.dcm.DirectoryRecord;
 
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 
@@ -45,113 +62,351 @@ import com.google.common.io.ByteStreams;
  */
 final class ViewSlicesAction extends AbstractAction {
 	private static final long serialVersionUID = 1L;
+	private static final String GZIP_SUFFIX = ".gz";
+	private static final int STREAM_BUFFER_SIZE = 512 * 1024;	// ImageJ marks and resets over the header
 
+	private final FileSetTreeModel model;
 	private final Collection<TreePath> selection;
+	private volatile long maxCachedBytes = 256L * 1024 * 1024;
 
-	public ViewSlicesAction(final String name, final Collection<TreePath> selection) {
+	public ViewSlicesAction(final FileSetTreeModel model, final String name, final Collection<TreePath> selection) {
 		super(name);
+		this.model = model;
 		this.selection = selection;
 	}
 
+	/**
+	 * Sets the memory available for decoded slices.  Series that fit are
+	 * loaded in full; larger series are shown as virtual stacks that decode
+	 * slices as they are displayed and keep at most this much.
+	 * @param megabytes
+	 */
+	public void setCacheSize(final int megabytes) {
+		this.maxCachedBytes = Math.max(1, megabytes) * 1024L * 1024;
+	}
+
+	/**
+	 * Decompressed copies of gzipped files that ImageJ can't decode from a stream.
+	 * Different files are decompressed concurrently; the copies are kept in
+	 * least-recently-used order and the oldest are deleted once their total size
+	 * exceeds a fixed limit.
+	 */
 	private final static class Ungz {
 		private Ungz() {}	// no instantiation
-		private final static Map<File,File> map = Maps.newHashMap();
-		final static String GZIP_SUFFIX = ".gz";
+		private final static long MAX_CACHED_BYTES = 512L * 1024 * 1024;
 
-		public static File get(final File f) throws IOException {
-			if (f.getName().endsWith(GZIP_SUFFIX)) {
-				synchronized(map) {
-					if (map.containsKey(f) && map.get(f).exists()) {
-						return map.get(f);
-					} else {
-						final File unzip = File.createTempFile(f.getName().replace(".gz", ""), ".tmp");
-						unzip.deleteOnExit();
-
-						IOException ioexception = null;
-						final FileOutputStream fout = new FileOutputStream(unzip);
-						try {
-							final BufferedOutputStream bout = new BufferedOutputStream(fout);
-							try {
-								final FileInputStream fin = new FileInputStream(f);
-								try {
-									final GZIPInputStream gzin = new GZIPInputStream(fin);
-									try {
-										ByteStreams.copy(gzin, bout);
-										map.put(f, unzip);
-										return unzip;
-									} catch (IOException e) {
-										throw ioexception = e;
-									} finally {
-										try {
-											gzin.close();
-										} catch (IOException e) {
-											throw ioexception = (null == ioexception ? e : ioexception);
-										}
-									}
-								} finally {
-									try {
-										fin.close();
-									} catch (IOException e) {
-										throw ioexception = e;
-									}
-								}
-							} finally {
-								try {
-									bout.close();
-								} catch (IOException e) {
-									throw ioexception = (null == ioexception ? e : ioexception);
-								}
-							}
-						} finally {
-							try {
-								fout.close();
-							} catch (IOException e) {
-								throw null == ioexception ? e : ioexception;
-							}
+		private final static class Entry {
+			final FutureTask<File> task;
+			long length = 0;
+
+			Entry(final FutureTask<File> task) {
+				this.task = task;
+			}
+		}
+
+		private final static Map<File,Entry> cache = new LinkedHashMap<File,Entry>(16, 0.75f, true);
+		private static long cachedBytes = 0;
+
+		static {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					synchronized (cache) {
+						for (final Entry e : cache.values()) {
+							delete(e);
 						}
+						cache.clear();
 					}
 				}
-			} else {
+			});
+		}
+
+		private static void delete(final Entry e) {
+			if (e.task.isDone()) {
+				try {
+					e.task.get().delete();
+				} catch (InterruptedException ignore) {
+				} catch (ExecutionException ignore) {}
+			}
+		}
+
+		private static File unzip(final File f) throws IOException {
+			final File unzip = File.createTempFile(f.getName().replace(GZIP_SUFFIX, ""), ".tmp");
+			IOException ioexception = null;
+			final InputStream in = new GZIPInputStream(new FileInputStream(f));
+			try {
+				final OutputStream out = new BufferedOutputStream(new FileOutputStream(unzip));
+				try {
+					ByteStreams.copy(in, out);
+				} catch (IOException e) {
+					throw ioexception = e;
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+						throw ioexception = (null == ioexception ? e : ioexception);
+					}
+				}
+			} catch (IOException e) {
+				unzip.delete();
+				throw ioexception = (null == ioexception ? e : ioexception);
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					throw null == ioexception ? e : ioexception;
+				}
+			}
+			return unzip;
+		}
+
+		/**
+		 * Deletes the least recently used copies, other than the given one,
+		 * until the total size is within the limit.  Copies still being
+		 * decompressed are skipped.
+		 */
+		private static void evict(final File keep) {
+			for (final Iterator<Map.Entry<File,Entry>> i = cache.entrySet().iterator();
+			cachedBytes > MAX_CACHED_BYTES && i.hasNext(); ) {
+				final Map.Entry<File,Entry> me = i.next();
+				if (!me.getKey().equals(keep) && me.getValue().task.isDone()) {
+					delete(me.getValue());
+					cachedBytes -= me.getValue().length;
+					i.remove();
+				}
+			}
+		}
+
+		public static File get(final File f) throws IOException {
+			if (!f.getName().endsWith(GZIP_SUFFIX)) {
 				return f;
 			}
+			final Entry entry;
+			boolean owner = false;
+			synchronized (cache) {
+				final Entry cached = cache.get(f);
+				if (null != cached && (!cached.task.isDone() || isAvailable(cached))) {
+					entry = cached;
+				} else {
+					if (null != cached) {
+						cachedBytes -= cached.length;
+					}
+					entry = new Entry(new FutureTask<File>(new Callable<File>() {
+						public File call() throws IOException {
+							return unzip(f);
+						}
+					}));
+					cache.put(f, entry);
+					owner = true;
+				}
+			}
+			if (owner) {
+				entry.task.run();	// decompress on this thread, outside the lock
+			}
+			try {
+				final File unzip = entry.task.get();
+				if (owner) {
+					synchronized (cache) {
+						entry.length = unzip.length();
+						cachedBytes += entry.length;
+						evict(f);
+					}
+				}
+				return unzip;
+			} catch (ExecutionException e) {
+				synchronized (cache) {
+					if (entry == cache.get(f)) {
+						cache.remove(f);
+					}
+				}
+				final Throwable cause = e.getCause();
+				throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted decompressing " + f);
+			}
+		}
+
+		private static boolean isAvailable(final Entry e) {
+			try {
+				return e.task.get().exists();
+			} catch (InterruptedException ex) {
+				return false;
+			} catch (ExecutionException ex) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Opens one slice.  Gzipped files are decoded by ImageJ straight from the
+	 * decompressing stream; only if that fails are they decompressed to a
+	 * temporary file.
+	 * @param file DICOM file, optionally gzip-compressed (name ending in .gz)
+	 * @return image
+	 * @throws IOException
+	 */
+	static ImagePlus open(final File file) throws IOException {
+		if (file.getName().endsWith(GZIP_SUFFIX)) {
+			final DICOM dicom;
+			final InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)),
+					STREAM_BUFFER_SIZE);
+			try {
+				dicom = new DICOM(in);
+				dicom.open(file.getPath());
+			} finally {
+				in.close();
+			}
+			if (dicom.getWidth() > 0 && null != dicom.getStack()) {
+				return dicom;
+			}
+		}
+		return new ImagePlus(Ungz.get(file).getPath());
+	}
+
+
+	private static final int LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int MAX_PENDING_SLICES = 4 * LOADER_THREADS;
+	private static final ExecutorService loader = Executors.newFixedThreadPool(LOADER_THREADS,
+			new ThreadFactory() {
+		private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+		public Thread newThread(final Runnable r) {
+			final Thread t = delegate.newThread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Sort key for one slice, from the values in its instance record.
+	 */
+	private static final class SliceKey {
+		final File file;
+		final int number;
+		final double[] position;
+
+		SliceKey(final DirectoryRecord instance) {
+			this.file = new File(instance.getValue(Tag.ReferencedFileID));
+			this.number = FileSetTreeModel.getInstanceNumber(instance);
+			this.position = getPosition(instance);
+		}
+
+		private static double[] getPosition(final DirectoryRecord instance) {
+			final String v = instance.getValue(Tag.ImagePositionPatient);
+			if (null != v) {
+				final String[] vs = v.split("\\\\");
+				if (3 == vs.length) {
+					try {
+						return new double[] {
+								Double.parseDouble(vs[0].trim()),
+								Double.parseDouble(vs[1].trim()),
+								Double.parseDouble(vs[2].trim())
+						};
+					} catch (NumberFormatException e) {}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Puts the instances of one series in slice order: by InstanceNumber, then
+	 * by ImagePositionPatient along the axes over which the positions vary
+	 * most, then by file path.  Only values already in the instance records
+	 * are used; instances without a value go after those with one.
+	 * @param instances
+	 * @return files, in slice order
+	 */
+	static List<File> sortSlices(final List<DirectoryRecord> instances) {
+		final List<SliceKey> keys = new ArrayList<SliceKey>(instances.size());
+		final double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		for (final DirectoryRecord instance : instances) {
+			final SliceKey key = new SliceKey(instance);
+			keys.add(key);
+			if (null != key.position) {
+				for (int i = 0; i < 3; i++) {
+					min[i] = Math.min(min[i], key.position[i]);
+					max[i] = Math.max(max[i], key.position[i]);
+				}
+			}
+		}
+		final Integer[] axes = { 0, 1, 2 };
+		Arrays.sort(axes, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return Double.compare(max[b] - min[b], max[a] - min[a]);
+			}
+		});
+
+		Collections.sort(keys, new Comparator<SliceKey>() {
+			public int compare(final SliceKey a, final SliceKey b) {
+				if (a.number != b.number) {
+					return a.number < b.number ? -1 : 1;
+				}
+				if (null != a.position && null != b.position) {
+					for (final int axis : axes) {
+						final int c = Double.compare(a.position[axis], b.position[axis]);
+						if (0 != c) {
+							return c;
+						}
+					}
+				} else if (null != a.position) {
+					return -1;
+				} else if (null != b.position) {
+					return 1;
+				}
+				return a.file.compareTo(b.file);
+			}
+		});
+
+		final List<File> files = new ArrayList<File>(keys.size());
+		for (final SliceKey key : keys) {
+			files.add(key.file);
 		}
+		return files;
 	}
 
 
 	private static class ImageFinder implements Runnable {
+		private final FileSetTreeModel model;
 		private final Collection<TreePath> selection;
+		private final long maxCachedBytes;
 
-		ImageFinder(final Collection<TreePath> selection) {
+		ImageFinder(final FileSetTreeModel model, final Collection<TreePath> selection, final long maxCachedBytes) {
+			this.model = model;
 			this.selection = Sets.newLinkedHashSet(selection);
+			this.maxCachedBytes = maxCachedBytes;
 		}
 
 		/**
-		 * Determine what files are selected, organized by Series
-		 * @return Map from Series DirectoryRecord to Collection of DICOM files
+		 * Determine what files are selected, organized by Series.  The
+		 * instances are taken from the tree as shown, so files still being
+		 * imported don't need the FileSet lock.
+		 * @return Map from Series DirectoryRecord to Collection of DICOM files,
+		 *  in slice order
 		 */
 		public final Map<DirectoryRecord,Collection<File>> getSeriesImages() {
-			final Map<DirectoryRecord,Collection<File>> images = new HashMap<DirectoryRecord,Collection<File>>();
+			final Map<DirectoryRecord,List<DirectoryRecord>> instances = new HashMap<DirectoryRecord,List<DirectoryRecord>>();
 
 			for (final TreePath tp : selection) {
-				final Queue<DirectoryRecord> records = new LinkedList<DirectoryRecord>();
-				records.add((DirectoryRecord)tp.getLastPathComponent());
-				while (records.peek() != null) {
-					final DirectoryRecord dr = records.poll();
-					final String rfpath = dr.getValue(Tag.ReferencedFileID);
-					if (rfpath != null) {
+				for (final DirectoryRecord dr : model.getInstancesBelow(tp.getLastPathComponent())) {
+					if (dr.getValue(Tag.ReferencedFileID) != null) {
 						final DirectoryRecord series = dr.getUpper();
 						assert series.getValue(Tag.SeriesNumber) != null;
-						if (!images.containsKey(series))
-							images.put(series, new LinkedList<File>());
-						images.get(series).add(new File(rfpath));
-					} else
-						records.addAll(dr.getLower());
+						if (!instances.containsKey(series))
+							instances.put(series, new ArrayList<DirectoryRecord>());
+						instances.get(series).add(dr);
+					}
 				}
 			}
+
+			final Map<DirectoryRecord,Collection<File>> images = new HashMap<DirectoryRecord,Collection<File>>();
+			for (final Map.Entry<DirectoryRecord,List<DirectoryRecord>> me : instances.entrySet()) {
+				images.put(me.getKey(), sortSlices(me.getValue()));
+			}
 			return images;
 		}
 
-		// TODO: no out-of-memory check
 		private void showImages(final String label, final Collection<File> files) throws IOException {
 			final Iterator<File> fi = files.iterator();
 			if (!fi.hasNext())
@@ -162,23 +417,53 @@ final class ViewSlicesAction extends AbstractAction {
 				new ImageJ(null, ImageJ.EMBEDDED).exitWhenQuitting(false);
 			}
 
-			final File first = Ungz.get(fi.next());
+			// The first slice is decoded here, so that ImageJ's DICOM
+			// dictionary is loaded before the loaders start.
+			final File first = fi.next();
 			int progress = 0;
 			IJ.showStatus("Loading " + first.getName());	// TODO: localize
 			IJ.showProgress(progress, files.size());
 
-			final ImagePlus firstImage = new ImagePlus(first.getPath());
+			final ImagePlus firstImage = open(first);
+
+			if (DicomVirtualStack.getSize(firstImage.getProcessor()) * files.size() > maxCachedBytes) {
+				final ImagePlus image = new ImagePlus(label,
+						new DicomVirtualStack(firstImage, new ArrayList<File>(files), loader, maxCachedBytes));
+				image.setCalibration(firstImage.getCalibration());
+				image.show();
+				IJ.showProgress(files.size(), files.size());
+				return;
+			}
 
 			final ImageStack stack = firstImage.getStack();
 
-			while (fi.hasNext()) {
-				final File file = Ungz.get(fi.next());
-				IJ.showStatus("Loading " + file.getName());	// TODO: localize
-				IJ.showProgress(++progress, files.size());
-				final ImagePlus im = new ImagePlus(file.getPath());
-				final ImageStack oneImage = im.getStack();
-				assert oneImage.getSize() == 1;
-				stack.addSlice(file.getName(), oneImage.getProcessor(1));	// index is 1-offset
+			// The remaining slices are decoded on the loader pool, a bounded
+			// number ahead, and added to the stack in order.
+			final Queue<File> pendingFiles = new LinkedList<File>();
+			final Queue<Future<ImagePlus>> pending = new LinkedList<Future<ImagePlus>>();
+			try {
+				while (fi.hasNext() || !pending.isEmpty()) {
+					while (fi.hasNext() && pending.size() < MAX_PENDING_SLICES) {
+						final File file = fi.next();
+						pendingFiles.add(file);
+						pending.add(loader.submit(new Callable<ImagePlus>() {
+							public ImagePlus call() throws IOException {
+								return open(file);
+							}
+						}));
+					}
+					final File file = pendingFiles.poll();
+					final ImagePlus im = getSlice(pending.poll(), file);
+					IJ.showStatus("Loading " + file.getName());	// TODO: localize
+					IJ.showProgress(++progress, files.size());
+					final ImageStack oneImage = im.getStack();
+					assert oneImage.getSize() == 1;
+					stack.addSlice(file.getName(), oneImage.getProcessor(1));	// index is 1-offset
+				}
+			} finally {
+				for (final Future<ImagePlus> f : pending) {
+					f.cancel(true);
+				}
 			}
 
 			final ImagePlus image = new ImagePlus(label, stack);
@@ -187,6 +472,24 @@ final class ViewSlicesAction extends AbstractAction {
 			assert progress == files.size();
 		}
 
+		private static ImagePlus getSlice(final Future<ImagePlus> f, final File file) throws IOException {
+			try {
+				return f.get();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException)cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				} else {
+					throw new IOException("unable to load " + file, cause);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted loading " + file);
+			}
+		}
+
 
 		public void run() {
 			for (final Map.Entry<DirectoryRecord,Collection<File>> me : getSeriesImages().entrySet()) try {
@@ -207,6 +510,6 @@ final class ViewSlicesAction extends AbstractAction {
 	 * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
 	 */
 	public void actionPerformed(final ActionEvent e) {
-		new Thread(new ImageFinder(new LinkedHashSet<TreePath>(selection))).start();
+		new Thread(new ImageFinder(model, new LinkedHashSet<TreePath>(selection), maxCachedBytes)).start();
 	}
 }
@@ -16,6 +16,7 @@ import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,11 +33,12 @@ import org.dcm4che2.data.Tag;
 import org.dcm4che2.net.TransferCapability;
 import org.dcm4che2.util.TagUtils;
 import org.dom4j.DocumentException;
-import org.nrg.dcm.io.BatchExporter;
 import org.nrg.dcm.io.CStoreExporter;
 import org.nrg.dcm.io.DicomFileObjectIterator;
 import org.nrg.dcm.io.DicomObjectExporter;
 import org.nrg.dcm.io.NewRootFileExporter;
+import org.nrg.dcm.io.ParallelBatchExporter;
+import org.nrg.dcm.io.PooledCStoreExporter;
 import org.nrg.dcm.io.TransferCapabilityExtractor;
 import org.nrg.io.FileWalkIterator;
 import org.slf4j.Logger;
@@ -195,6 +197,10 @@ public final class CSVRemapper {
     private final List<Statement> globalStatements = Lists.newArrayList();
     private final DicomObject template;
     private final PrintStream messages = System.err;
+    private int parallelism = 1;
+    private int associations = 1;
+    private boolean singlePass = false;
+    private File indexDir = null;
 
     public CSVRemapper(final File configFile, final DicomObject template)
     throws IOException,ParseException,DocumentException,InvalidCSVException {
@@ -290,12 +296,170 @@ public final class CSVRemapper {
         }
     }
 
-    private static Constraint makeConstraint(final RemapWithContext remap) {
-        final Collection<ConstraintMatch> conditions = Sets.newLinkedHashSet();
-        for (Map.Entry<Integer,String> me : remap.context.selectionKeys.entrySet()) {
-            conditions.add(new SimpleConstraintMatch(me.getKey(), me.getValue()));
+    /**
+     * Compiles the assignments into one statement per remap column.  Each
+     * column's values are indexed by selection key values, so every file
+     * finds its assignments with one lookup per column rather than by
+     * testing a constrained statement for each spreadsheet row.
+     * @param assignments validated assignments
+     * @return remap statements, which apply to every file
+     * @throws InvalidRemapsException if remaps whose selection key values
+     *  differ only in surrounding whitespace are assigned different values
+     */
+    private List<Statement> makeRemapStatements(final Map<RemapWithContext,String> assignments)
+    throws InvalidRemapsException {
+        final Map<RemapColumn,HashRemapTable> tables = Maps.newLinkedHashMap();
+        for (final RemapColumn col : remaps) {
+            tables.put(col, new HashRemapTable());
+        }
+        final Multimap<RemapWithContext,String> overspecified = LinkedHashMultimap.create();
+        for (final Map.Entry<RemapWithContext,String> e : assignments.entrySet()) {
+            final RemapWithContext remap = e.getKey();
+            final String prev = tables.get(remap.column).put(RemapOperation.encodeKey(getKeyValues(remap.context)), e.getValue());
+            if (null != prev && !prev.equals(e.getValue())) {
+                // Keys are trimmed, so these contexts select the same files.
+                overspecified.put(remap, prev);
+                overspecified.put(remap, e.getValue());
+            }
+        }
+        if (!overspecified.isEmpty()) {
+            throw new InvalidRemapsException(Collections.<RemapWithContext>emptyList(), overspecified);
+        }
+
+        final List<Statement> statements = Lists.newArrayList();
+        for (final Map.Entry<RemapColumn,HashRemapTable> me : tables.entrySet()) {
+            if (me.getValue().size() > 0) {
+                statements.add(makeRemapStatement(me.getKey(), me.getValue()));
+            }
+        }
+        return statements;
+    }
+
+    private List<String> getKeyValues(final RemapContext context) {
+        final List<String> key = Lists.newArrayList();
+        for (final int tag : selectionKeysToCols.get(context.level).keySet()) {
+            key.add(context.selectionKeys.get(tag));
+        }
+        return key;
+    }
+
+    private Statement makeRemapStatement(final RemapColumn col, final RemapTable table) {
+        final List<Integer> keyTags = Lists.newArrayList(selectionKeysToCols.get(col.getLevel()).keySet());
+        // no constraint: the operation does its own matching
+        return new Statement((Constraint)null, new RemapOperation(col.getTag(), keyTags, table));
+    }
+
+    /**
+     * Streams the remap spreadsheet into on-disk indices, one per remap column,
+     * which are memory-mapped for the export.  Only a bounded number of
+     * assignments is held in memory; conflicts are found by an external sort.
+     * Unlike makeAssignments, this reports only conflicting assignments, since
+     * an unassigned remap can't arise from the spreadsheet.
+     * @param remapSpreadsheet
+     * @return remap statements, which apply to every file
+     * @throws IOException
+     * @throws InvalidRemapsException if any remap is assigned multiple values
+     */
+    private List<Statement> makeIndexedRemapStatements(final CSVReader remapSpreadsheet)
+    throws IOException,InvalidRemapsException {
+        final List<RemapColumn> cols = Lists.newArrayList(remaps);
+        final RemapIndexBuilder builder = new RemapIndexBuilder(indexDir, cols.size());
+
+        String[] line = remapSpreadsheet.readNext();	// skip the header line
+        while (null != (line = remapSpreadsheet.readNext())) {
+            for (int i = 0; i < cols.size(); i++) {
+                final RemapColumn col = cols.get(i);
+                final String value = line[col.getIndex()];
+                if (!Strings.isNullOrEmpty(value)) {
+                    final List<String> key = Lists.newArrayList();
+                    for (final int index : selectionKeysToCols.get(col.getLevel()).values()) {
+                        key.add(line[index]);
+                    }
+                    builder.add(i, RemapOperation.encodeKey(key), value);
+                }
+            }
+        }
+
+        final List<RemapIndexBuilder.Conflict> conflicts = builder.finish();
+        if (!conflicts.isEmpty()) {
+            final Multimap<RemapWithContext,String> overspecified = LinkedHashMultimap.create();
+            for (final RemapIndexBuilder.Conflict c : conflicts) {
+                final RemapColumn col = cols.get(c.column);
+                final Map<Integer,String> keys = Maps.newLinkedHashMap();
+                final Iterator<String> vi = RemapOperation.decodeKey(c.key).iterator();
+                for (final int tag : selectionKeysToCols.get(col.getLevel()).keySet()) {
+                    keys.put(tag, vi.next());
+                }
+                overspecified.putAll(new RemapWithContext(new RemapContext(col.getLevel(), keys), col), c.values);
+            }
+            throw new InvalidRemapsException(Collections.<RemapWithContext>emptyList(), overspecified);
+        }
+
+        final List<Statement> statements = Lists.newArrayList();
+        for (int i = 0; i < cols.size(); i++) {
+            final MappedRemapTable table = new MappedRemapTable(builder.getIndexFile(i));
+            if (table.size() > 0) {
+                statements.add(makeRemapStatement(cols.get(i), table));
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Selects streaming ingestion of the remap spreadsheet: instead of being
+     * held in memory, the assignments are sorted on disk and written to
+     * memory-mapped indices in the given directory.
+     * @param indexDir directory for the remap indices, or null to hold the
+     *                 assignments in memory
+     * @return this
+     */
+    public CSVRemapper setIndexDirectory(final File indexDir) {
+        this.indexDir = indexDir;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used to read, modify, and write files.
+     * @param parallelism
+     * @return this
+     */
+    public CSVRemapper setParallelism(final int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Sets the number of associations opened when sending to a dicom: URI.
+     * @param associations
+     * @return this
+     */
+    public CSVRemapper setAssociations(final int associations) {
+        this.associations = Math.max(1, associations);
+        return this;
+    }
+
+    /**
+     * Sets whether files sent to a dicom: URI are walked only once.  In single-pass
+     * mode, presentation contexts are negotiated as new SOP class and transfer
+     * syntax pairs are found, instead of from a separate walk before sending;
+     * the total file count isn't known in advance.
+     * @param singlePass
+     * @return this
+     */
+    public CSVRemapper setSinglePass(final boolean singlePass) {
+        this.singlePass = singlePass;
+        return this;
+    }
+
+    private DicomObjectExporter buildSender(final String host, final int port,
+            final String remAETitle, final String locAETitle, final TransferCapability[] tcs) {
+        if (associations > 1) {
+            return new PooledCStoreExporter(host, Integer.toString(port), false,
+                    remAETitle, locAETitle, tcs, associations);
+        } else {
+            return new CStoreExporter(host, Integer.toString(port), false,
+                    remAETitle, locAETitle, tcs);
         }
-        return new Constraint(new ConstraintConjunction(conditions));
     }
 
     /**
@@ -317,9 +481,10 @@ public final class CSVRemapper {
             IOException ioexception = null;
             final CSVReader reader = new CSVReader(new FileReader(remapSpreadsheet));
             try {
-                for (final Map.Entry<RemapWithContext,String> e : makeAssignments(reader).entrySet()) {
-                    statements.add(new Statement(makeConstraint(e.getKey()),
-                            new Assignment(e.getKey().column.getTag(), e.getValue())));
+                if (null == indexDir) {
+                    statements.addAll(makeRemapStatements(makeAssignments(reader)));
+                } else {
+                    statements.addAll(makeIndexedRemapStatements(reader));
                 }
             } catch (IOException e) {
                 throw ioexception = e;
@@ -335,6 +500,7 @@ public final class CSVRemapper {
         }
 
         final DicomObjectExporter exporter;
+        final int writers;
 
         int count;
         if (!out.isAbsolute()) {
@@ -350,23 +516,31 @@ public final class CSVRemapper {
                 }
             }
             exporter = new NewRootFileExporter(AE_TITLE, new File(out), roots);
+            writers = parallelism;
             count = 0;
         } else if ("dicom".equals(out.getScheme())) {
             final String locAETitle = out.getUserInfo();
             final String destHost = out.getHost();
             final int destPort = -1 == out.getPort() ? DICOM_DEFAULT_PORT : out.getPort();
             final String destAETitle = out.getPath().replaceAll("/", "");
-            final FileWalkIterator walker = new FileWalkIterator(files,
-                    new StreamProgressMonitor(messages, "Searching", "original DICOM"));
-            final TransferCapability[] tcs = TransferCapabilityExtractor.getTransferCapabilities(walker, TransferCapability.SCU);
-            count = walker.getCount();
-            exporter = new CStoreExporter(destHost, Integer.toString(destPort), false,
-                    destAETitle, locAETitle, tcs);
+            if (singlePass) {
+                exporter = new PooledCStoreExporter(destHost, Integer.toString(destPort), false,
+                        destAETitle, locAETitle, new TransferCapability[0], associations);
+                count = 0;
+            } else {
+                final FileWalkIterator walker = new FileWalkIterator(files,
+                        new StreamProgressMonitor(messages, "Searching", "original DICOM"));
+                final TransferCapability[] tcs = TransferCapabilityExtractor.getTransferCapabilities(walker, TransferCapability.SCU);
+                count = walker.getCount();
+                exporter = buildSender(destHost, destPort, destAETitle, locAETitle, tcs);
+            }
+            writers = associations;     // one writer per association
         } else {
             throw new UnsupportedOperationException("no exporter defined for URI scheme " + out.getScheme());
         }
 
-        final BatchExporter batch = new BatchExporter(exporter, statements, new FileWalkIterator(files, null));
+        final ParallelBatchExporter batch = new ParallelBatchExporter(exporter, statements, new FileWalkIterator(files, null));
+        batch.setParallelism(parallelism, writers);
         batch.setProgressMonitor(new StreamProgressMonitor(messages, "Processing", "modified DICOM", count), 0);
         batch.run();
         return batch.getFailures();
@@ -456,6 +630,22 @@ public final class CSVRemapper {
         "CSV spreadsheet file specifying remapped values");
         options.addOption(valuesOpt);
 
+        final Option threadsOpt = new Option("t", "threads", true,
+        "number of threads used to process files (default 1)");
+        options.addOption(threadsOpt);
+
+        final Option associationsOpt = new Option("a", "associations", true,
+        "number of parallel associations for dicom: output (default 1)");
+        options.addOption(associationsOpt);
+
+        final Option singlePassOpt = new Option("s", "single-pass", false,
+        "for dicom: output, negotiate while sending instead of scanning the input first");
+        options.addOption(singlePassOpt);
+
+        final Option indexDirOpt = new Option("i", "index-dir", true,
+        "stream the values spreadsheet into on-disk remap indices in this directory, instead of memory");
+        options.addOption(indexDirOpt);
+
         final CommandLineParser parser = new PosixParser(); 
         final CommandLine cli;
         try {
@@ -491,6 +681,26 @@ public final class CSVRemapper {
         final String specXMLPath = cli.getOptionValue(configXMLOpt.getOpt());
         final File specXMLFile = null == specXMLPath ? null : new File(specXMLPath);
         final CSVRemapper remapper = new CSVRemapper(specXMLFile, dcmo);
+        if (cli.hasOption(threadsOpt.getOpt())) {
+            try {
+                remapper.setParallelism(Integer.parseInt(cli.getOptionValue(threadsOpt.getOpt())));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid thread count " + cli.getOptionValue(threadsOpt.getOpt()));
+                System.exit(-6);
+            }
+        }
+        remapper.setSinglePass(cli.hasOption(singlePassOpt.getOpt()));
+        if (cli.hasOption(indexDirOpt.getOpt())) {
+            remapper.setIndexDirectory(new File(cli.getOptionValue(indexDirOpt.getOpt())));
+        }
+        if (cli.hasOption(associationsOpt.getOpt())) {
+            try {
+                remapper.setAssociations(Integer.parseInt(cli.getOptionValue(associationsOpt.getOpt())));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid association count " + cli.getOptionValue(associationsOpt.getOpt()));
+                System.exit(-6);
+            }
+        }
 
         final String[] dasPaths = cli.getOptionValues(dasScriptOpt.getOpt());
         if (null != dasPaths) {
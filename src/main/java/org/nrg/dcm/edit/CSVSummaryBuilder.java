@@ -9,10 +9,12 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
@@ -41,6 +43,8 @@ public class CSVSummaryBuilder {
 	private static final String[] STRING_ARRAY = new String[0];
 
 	private final ConfigurableDirectoryRecordFactory factory;
+	private boolean streaming = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
 
 	private static void makeHeader(final CSVWriter csv, final Collection<DicomTableEntry> cols) {
 		final Collection<String> labels = Lists.newArrayList();
@@ -62,7 +66,23 @@ public class CSVSummaryBuilder {
 		factory = new ConfigurableDirectoryRecordFactory(configFile);
 	}
 
+	/**
+	 * Selects the streaming summarizer, which reads files in parallel without
+	 * building a FileSet; rows are written in the order found.
+	 * @param streaming
+	 * @param threads number of threads reading files
+	 */
+	public void setStreaming(final boolean streaming, final int threads) {
+		this.streaming = streaming;
+		this.threads = Math.max(1, threads);
+	}
+
 	public void run(final CSVWriter spreadsheet, final ProgressMonitorI pm, final File...files) throws Exception {
+		if (streaming) {
+			new StreamingSummaryBuilder(factory).setParallelism(threads).run(spreadsheet, pm, files);
+			return;
+		}
+
 		// Trawl through the files to build the Directory Record representation
 		final FileSet fs = new FileSet(files, EMPTY_OPTS, factory, pm);
 
@@ -115,6 +135,30 @@ public class CSVSummaryBuilder {
 		formatter.printHelp("DicomSummarize [OPTIONS] [DICOM-FILES]", opts);
 	}
 
+	/**
+	 * Selects one shard of the input paths: path j is in shard i of n if j mod n == i,
+	 * so every process given the same argument list agrees on the shards.
+	 * @param paths input paths, in argument order
+	 * @param spec shard specification i/n, with 0 <= i < n
+	 * @return paths in the indicated shard
+	 * @throws IllegalArgumentException if the specification is invalid
+	 */
+	static List<String> getShard(final List<String> paths, final String spec) {
+		final String[] parts = spec.split("/");
+		if (2 != parts.length) {
+			throw new IllegalArgumentException("shard must be given as i/n: " + spec);
+		}
+		final int i = Integer.parseInt(parts[0].trim()), n = Integer.parseInt(parts[1].trim());
+		if (n < 1 || i < 0 || i >= n) {
+			throw new IllegalArgumentException("invalid shard " + spec);
+		}
+		final List<String> shard = Lists.newArrayList();
+		for (int j = i; j < paths.size(); j += n) {
+			shard.add(paths.get(j));
+		}
+		return shard;
+	}
+
 
 	/**
 	 * @param args
@@ -131,6 +175,20 @@ public class CSVSummaryBuilder {
 		"CSV summary spreadsheet file (defaults to standard output)");
 		options.addOption(valuesOpt);
 
+		options.addOption("s", "streaming", false,
+		"read files in parallel without building a file set; rows are written in the order found");
+
+		final Option threadsOpt = new Option("t", "threads", true,
+		"number of threads reading files in streaming mode (defaults to number of processors)");
+		options.addOption(threadsOpt);
+
+		final Option shardOpt = new Option("p", "shard", true,
+		"summarize only shard i/n of the DICOM-FILES arguments (every n-th argument, starting at i)");
+		options.addOption(shardOpt);
+
+		options.addOption("m", "merge", false,
+		"merge partial summaries (given in place of DICOM-FILES), removing duplicate rows");
+
 		final CommandLineParser parser = new PosixParser(); 
 		final CommandLine cli;
 		try {
@@ -146,8 +204,19 @@ public class CSVSummaryBuilder {
 			return;
 		}
 
+		List<String> paths = Arrays.asList(cli.getArgs());
+		if (cli.hasOption(shardOpt.getOpt())) {
+			try {
+				paths = getShard(paths, cli.getOptionValue(shardOpt.getOpt()));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				showUsage(options);
+				System.exit(-1);
+				return;
+			}
+		}
 		final Collection<File> files = Lists.newArrayList();
-		for (final String path : cli.getArgs()) {
+		for (final String path : paths) {
 			files.add(new File(path));
 		}
 
@@ -162,7 +231,17 @@ public class CSVSummaryBuilder {
 		try {
 
 			final File configFile = cli.hasOption(configXMLOpt.getOpt()) ? new File(cli.getOptionValue(configXMLOpt.getOpt())) : null;
+			if (cli.hasOption('m')) {
+				new SummaryMerger(new ConfigurableDirectoryRecordFactory(configFile)).run(new CSVWriter(out),
+						files.toArray(new File[0]));
+				return;
+			}
 			final CSVSummaryBuilder builder = new CSVSummaryBuilder(configFile);
+			if (cli.hasOption('s')) {
+				builder.setStreaming(true, cli.hasOption(threadsOpt.getOpt())
+						? Integer.parseInt(cli.getOptionValue(threadsOpt.getOpt()))
+						: Runtime.getRuntime().availableProcessors());
+			}
 			builder.run(new CSVWriter(out),
 					new StreamProgressMonitor(System.err, "Reading", "DICOM files", files.size()),
 					files.toArray(new File[0]));
@@ -184,6 +184,14 @@ public final class ConfigurableDirectoryRecordFactory extends AbstractFactory {
         return selectionTags.containsKey(level) ? Arrays.asList(selectionTags.get(level)) : null;
     }
 
+    /**
+     * @param level
+     * @return tags of the attributes included at the indicated level, or null if there is no such level
+     */
+    public Collection<Integer> getLevelTags(final String level) {
+        return levelTags.containsKey(level) ? Lists.newArrayList(levelTags.get(level)) : null;
+    }
+
     private static Document parseConfigFile(final File configFile) throws IOException,DocumentException {
         final SAXReader reader = new SAXReader(false);
         return reader.read(configFile);
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * RemapTable held in memory.
+ */
+final class HashRemapTable implements RemapTable {
+    private final Map<String,String> values = Maps.newHashMap();
+
+    /**
+     * Adds a table entry.  Entries must all be added before the table is read.
+     * @param key encoded selection key values
+     * @param value new attribute value
+     * @return the value previously assigned for this key, or null if none
+     */
+    String put(final String key, final String value) {
+        return values.put(key, value);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.RemapTable#get(java.lang.String)
+     */
+    public String get(final String key) { return values.get(key); }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.RemapTable#size()
+     */
+    public int size() { return values.size(); }
+}
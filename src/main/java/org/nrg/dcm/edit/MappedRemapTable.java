@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * RemapTable read from a memory-mapped index file written by RemapIndexBuilder.
+ * The file holds the entries, sorted by the UTF-8 bytes of their keys, followed
+ * by the offset of each entry, the entry count, and a magic number; lookups are
+ * binary searches over the mapped file, so the table occupies no heap beyond
+ * what the operating system pages in.
+ * Index files are limited to 2 GB each.
+ */
+final class MappedRemapTable implements RemapTable {
+    static final int MAGIC = 0x52454d58;    // "REMX"
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buf;
+    private final int count;
+    private final int offsetsStart;
+
+    MappedRemapTable(final File file) throws IOException {
+        IOException ioexception = null;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("remap index " + file + " is too large to map (" + size + " bytes)");
+            } else if (size < 8) {
+                throw new IOException("remap index " + file + " is truncated");
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw ioexception = e;
+        } finally {
+            try {
+                raf.close();    // the mapping remains valid
+            } catch (IOException e) {
+                throw null == ioexception ? e : ioexception;
+            }
+        }
+        if (MAGIC != buf.getInt(buf.limit() - 4)) {
+            throw new IOException(file + " is not a remap index");
+        }
+        count = buf.getInt(buf.limit() - 8);
+        offsetsStart = buf.limit() - 8 - 8 * count;
+        if (count < 0 || offsetsStart < 0) {
+            throw new IOException("remap index " + file + " is corrupt");
+        }
+    }
+
+    private int getOffset(final int i) {
+        return (int)buf.getLong(offsetsStart + 8 * i);
+    }
+
+    /**
+     * Compares the key of the entry at the given offset with the given key,
+     * as unsigned bytes.
+     */
+    private int compareKey(final int offset, final byte[] key) {
+        final int length = buf.getInt(offset);
+        final int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            final int d = (buf.get(offset + 4 + i) & 0xff) - (key[i] & 0xff);
+            if (0 != d) {
+                return d;
+            }
+        }
+        return length - key.length;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.RemapTable#get(java.lang.String)
+     */
+    public String get(final String key) {
+        final byte[] kb = key.getBytes(UTF8);
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int offset = getOffset(mid);
+            final int c = compareKey(offset, kb);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                // Absolute reads only, so concurrent lookups don't interfere.
+                final int valueOffset = offset + 4 + buf.getInt(offset);
+                final byte[] vb = new byte[buf.getInt(valueOffset)];
+                for (int i = 0; i < vb.length; i++) {
+                    vb[i] = buf.get(valueOffset + 4 + i);
+                }
+                return new String(vb, UTF8);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.RemapTable#size()
+     */
+    public int size() { return count; }
+}
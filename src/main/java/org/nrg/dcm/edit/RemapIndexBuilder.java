@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Builds MappedRemapTable index files from a stream of remap assignments with
+ * bounded memory.  Assignments are buffered up to a fixed count, then sorted
+ * and spilled to a run file; when all have been added, the runs are merged,
+ * which brings all assignments for each column and key together.  A key
+ * assigned more than one distinct value is a conflict; the others are written
+ * to the column's index file.
+ */
+final class RemapIndexBuilder {
+    private static final int DEFAULT_MAX_BUFFERED = 200000;
+    private static final int MAX_CONFLICTS = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Logger logger = LoggerFactory.getLogger(RemapIndexBuilder.class);
+    private final File dir;
+    private final int ncolumns;
+    private final int maxBuffered;
+    private final List<Entry> buffer = Lists.newArrayList();
+    private final List<File> runs = Lists.newArrayList();
+    private final List<Conflict> conflicts = Lists.newArrayList();
+
+    /**
+     * Key assigned more than one value.
+     */
+    static final class Conflict {
+        final int column;
+        final String key;
+        final Set<String> values;
+
+        Conflict(final int column, final String key, final Set<String> values) {
+            this.column = column;
+            this.key = key;
+            this.values = values;
+        }
+    }
+
+    private static final class Entry {
+        final int column;
+        final byte[] key;
+        final byte[] value;
+
+        Entry(final int column, final byte[] key, final byte[] value) {
+            this.column = column;
+            this.key = key;
+            this.value = value;
+        }
+
+        void write(final DataOutputStream out) throws IOException {
+            out.writeInt(column);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+
+        static Entry read(final DataInputStream in) throws IOException {
+            final int column;
+            try {
+                column = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            final byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            final byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            return new Entry(column, key, value);
+        }
+    }
+
+    private static int compare(final byte[] a, final byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            final int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (0 != d) {
+                return d;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        public int compare(final Entry a, final Entry b) {
+            return a.column != b.column ? (a.column < b.column ? -1 : 1) : RemapIndexBuilder.compare(a.key, b.key);
+        }
+    };
+
+    /**
+     * @param dir directory for the run and index files
+     * @param ncolumns number of remap columns
+     * @param maxBuffered maximum number of assignments held in memory
+     */
+    RemapIndexBuilder(final File dir, final int ncolumns, final int maxBuffered) {
+        this.dir = dir;
+        this.ncolumns = ncolumns;
+        this.maxBuffered = Math.max(1, maxBuffered);
+    }
+
+    RemapIndexBuilder(final File dir, final int ncolumns) {
+        this(dir, ncolumns, DEFAULT_MAX_BUFFERED);
+    }
+
+    /**
+     * @param column remap column index
+     * @return index file for the column
+     */
+    File getIndexFile(final int column) {
+        return new File(dir, "remap-" + column + ".idx");
+    }
+
+    /**
+     * Adds an assignment.
+     * @param column remap column index
+     * @param key encoded selection key values
+     * @param value assigned value
+     * @throws IOException
+     */
+    void add(final int column, final String key, final String value) throws IOException {
+        buffer.add(new Entry(column, key.getBytes(UTF8), value.getBytes(UTF8)));
+        if (buffer.size() >= maxBuffered) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        Collections.sort(buffer, ENTRY_ORDER);
+        dir.mkdirs();
+        final File run = File.createTempFile("remap-run-", ".tmp", dir);
+        runs.add(run);
+        IOException ioexception = null;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (final Entry e : buffer) {
+                e.write(out);
+            }
+        } catch (IOException e) {
+            throw ioexception = e;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw null == ioexception ? e : ioexception;
+            }
+        }
+        logger.debug("spilled {} remap assignments to {}", buffer.size(), run);
+        buffer.clear();
+    }
+
+    /**
+     * One run being merged, with its next entry.
+     */
+    private static final class RunReader {
+        final DataInputStream in;
+        Entry next;
+
+        RunReader(final File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            next = Entry.read(in);
+        }
+
+        void advance() throws IOException {
+            next = Entry.read(in);
+        }
+    }
+
+    /**
+     * Writes the entries for one column to its index file.  The entry offsets
+     * go to a temporary file as they're written, and are appended to the index
+     * when it's complete, so the writer holds no per-entry state in memory.
+     */
+    private final class IndexWriter {
+        private final DataOutputStream out;
+        private final File offsetsFile;
+        private final DataOutputStream offsets;
+        private int count = 0;
+        private long position = 0;
+
+        IndexWriter(final int column) throws IOException {
+            offsetsFile = File.createTempFile("remap-offsets-", ".tmp", dir);
+            offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)));
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(column))));
+        }
+
+        void write(final byte[] key, final byte[] value) throws IOException {
+            offsets.writeLong(position);
+            count++;
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+            position += 8 + key.length + value.length;
+        }
+
+        void close(final boolean complete) throws IOException {
+            try {
+                offsets.close();
+                if (complete) {
+                    final InputStream in = new BufferedInputStream(new FileInputStream(offsetsFile));
+                    try {
+                        final byte[] b = new byte[8192];
+                        for (int n = in.read(b); n >= 0; n = in.read(b)) {
+                            out.write(b, 0, n);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.writeInt(count);
+                    out.writeInt(MappedRemapTable.MAGIC);
+                }
+            } finally {
+                out.close();
+                offsetsFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Merges the runs and writes the index file for each column.
+     * @return conflicting assignments (at most a fixed number are reported);
+     *  if not empty, the index files are incomplete and must not be used
+     * @throws IOException
+     */
+    List<Conflict> finish() throws IOException {
+        spill();
+        dir.mkdirs();
+        final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()),
+                new Comparator<RunReader>() {
+            public int compare(final RunReader a, final RunReader b) {
+                return ENTRY_ORDER.compare(a.next, b.next);
+            }
+        });
+        final List<RunReader> readers = Lists.newArrayList();
+        final List<IndexWriter> writers = Lists.newArrayList();
+        boolean complete = false;
+        try {
+            for (final File run : runs) {
+                final RunReader r = new RunReader(run);
+                readers.add(r);
+                if (null != r.next) {
+                    queue.add(r);
+                }
+            }
+            for (int i = 0; i < ncolumns; i++) {
+                writers.add(new IndexWriter(i));
+            }
+
+            while (!queue.isEmpty()) {
+                final RunReader first = queue.poll();
+                final Entry e = first.next;
+                final Set<String> values = Sets.newLinkedHashSet();
+                values.add(new String(e.value, UTF8));
+                advance(first, queue);
+                while (!queue.isEmpty() && 0 == ENTRY_ORDER.compare(queue.peek().next, e)) {
+                    final RunReader r = queue.poll();
+                    values.add(new String(r.next.value, UTF8));
+                    advance(r, queue);
+                }
+                if (values.size() > 1) {
+                    if (conflicts.size() < MAX_CONFLICTS) {
+                        conflicts.add(new Conflict(e.column, new String(e.key, UTF8), values));
+                    }
+                } else {
+                    writers.get(e.column).write(e.key, e.value);
+                }
+            }
+            complete = conflicts.isEmpty();
+        } finally {
+            for (final RunReader r : readers) {
+                try {
+                    r.in.close();
+                } catch (IOException e) {
+                    logger.debug("error closing remap run", e);
+                }
+            }
+            for (final IndexWriter w : writers) {
+                w.close(complete);
+            }
+            for (final File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+        return conflicts;
+    }
+
+    private static void advance(final RunReader r, final PriorityQueue<RunReader> queue) throws IOException {
+        r.advance();
+        if (null != r.next) {
+            queue.add(r);
+        }
+    }
+}
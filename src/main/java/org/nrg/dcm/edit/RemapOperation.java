@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.util.TagUtils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Assigns one attribute from a remap table column.  Each value is keyed by the
+ * values of the selection key attributes for the column's level (e.g., Study
+ * Instance UID for a study-level column); each object looks up its own key, so
+ * applying a column of any length costs one table lookup per object, instead of
+ * one constraint evaluation per table row.  Objects whose key isn't in the table
+ * are left unchanged.
+ */
+public final class RemapOperation extends AbstractOperation implements Operation {
+    private static final char KEY_SEPARATOR = '\u0000';
+    private final int tag;
+    private final List<Integer> keyTags;
+    private final RemapTable values;
+    private final SortedSet<Integer> affectedTags, requiredTags;
+
+    /**
+     * @param tag attribute to be assigned
+     * @param keyTags selection key attributes, in key order
+     * @param values new values, keyed by the encoded selection key values
+     */
+    RemapOperation(final int tag, final List<Integer> keyTags, final RemapTable values) {
+        super("Remap");
+        this.tag = tag;
+        this.values = values;
+        this.keyTags = ImmutableList.copyOf(keyTags);
+        this.affectedTags = ImmutableSortedSet.of(tag);
+        final SortedSet<Integer> required = Sets.newTreeSet(keyTags);
+        required.add(tag);
+        this.requiredTags = ImmutableSortedSet.copyOf(required);
+    }
+
+    /**
+     * Encodes selection key values as a table key.  Values are trimmed, and
+     * null is equivalent to empty.
+     * @param key selection key values, in key order
+     * @return table key
+     */
+    static String encodeKey(final List<String> key) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Iterator<String> i = key.iterator(); i.hasNext(); ) {
+            final String v = i.next();
+            if (null != v) {
+                sb.append(v.trim());
+            }
+            if (i.hasNext()) {
+                sb.append(KEY_SEPARATOR);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param key table key
+     * @return selection key values, in key order
+     */
+    static List<String> decodeKey(final String key) {
+        return Arrays.asList(key.split(String.valueOf(KEY_SEPARATOR), -1));
+    }
+
+    private String lookup(final DicomObject o) {
+        final List<String> key = Lists.newArrayList();
+        for (final int keyTag : keyTags) {
+            key.add(o.getString(keyTag));
+        }
+        return values.get(encodeKey(key));
+    }
+
+    private String lookup(final Map<Integer,String> vals) {
+        final List<String> key = Lists.newArrayList();
+        for (final int keyTag : keyTags) {
+            key.add(vals.get(keyTag));
+        }
+        return values.get(encodeKey(key));
+    }
+
+    /**
+     * @param o object to be modified
+     * @return true if the table has a value for the object's selection key,
+     *  false if this operation would leave the object unchanged
+     */
+    public boolean hasValue(final DicomObject o) {
+        return null != lookup(o);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.Operation#affects(int)
+     */
+    public boolean affects(final int tag) {
+        return this.tag == tag;
+    }
+
+    public int getTopTag() {
+        return tag;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.Operation#makeAction(org.dcm4che2.data.DicomObject)
+     */
+    public Action makeAction(final DicomObject o) throws AttributeException {
+        final String value = lookup(o);
+        if (null == value) {
+            return new Action() {
+                public void apply() {}
+            };
+        }
+        final VR vr = o.contains(tag) ? o.get(tag).vr() : o.vrOf(tag);
+        return new Action() {
+            public void apply() {
+                o.putString(tag, vr, value);
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.Operation#apply(java.util.Map)
+     */
+    public String apply(final Map<Integer,String> vals) {
+        final String value = lookup(vals);
+        return null == value ? vals.get(tag) : value;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.Operation#getAffectedTags()
+     */
+    public SortedSet<Integer> getAffectedTags() { return affectedTags; }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.edit.Operation#getRequiredTags()
+     */
+    public SortedSet<Integer> getRequiredTags() { return requiredTags; }
+
+    public String toString() {
+        return "Remap " + TagUtils.toString(tag) + " (" + values.size() + " values)";
+    }
+}
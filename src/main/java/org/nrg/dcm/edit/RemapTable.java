@@ -0,0 +1,22 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+/**
+ * Values for one remap column, keyed by the selection key values of the
+ * column's level.  Keys are encoded with RemapOperation.encodeKey.
+ * Implementations are safe for concurrent reads.
+ */
+interface RemapTable {
+    /**
+     * @param key encoded selection key values
+     * @return the value assigned for the key, or null if none
+     */
+    String get(String key);
+
+    /**
+     * @return number of keys with values assigned
+     */
+    int size();
+}
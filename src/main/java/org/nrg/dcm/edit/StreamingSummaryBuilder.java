@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che2.data.Tag;
+import org.nrg.dcm.ProgressMonitorI;
+import org.nrg.dcm.io.AbstractFileExporter;
+import org.nrg.dcm.io.HeaderReader;
+import org.nrg.io.FileWalkIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Builds the same CSV summary as CSVSummaryBuilder without building a FileSet.
+ * Files are read in parallel, and only the attributes needed for the columns
+ * and row keys are parsed from each.  A row is written as soon as the first
+ * file for its patient, study, series, or instance (whichever is the most
+ * specific level defining rows) is read, so rows appear in the order they are
+ * found rather than sorted by level.  As in CSVSummaryBuilder, the values of
+ * each level above the row level are those of the first file read for that
+ * patient, study, or series, and are shared by all of its rows; those values
+ * are retained for each such entity, but only a 128-bit digest of each row
+ * key.
+ */
+public final class StreamingSummaryBuilder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int QUEUE_LENGTH_PER_THREAD = 4;
+    private static final String EMPTY_STRING = "";
+    private static final String[] STRING_ARRAY = new String[0];
+
+    private final Logger logger = LoggerFactory.getLogger(StreamingSummaryBuilder.class);
+    private final List<DicomTableEntry> columns;
+    private final List<Integer> keyTags = Lists.newArrayList();
+    private final List<Collection<Integer>> levelTags = Lists.newArrayList();
+    private final List<Integer> levelKeyLengths = Lists.newArrayList();
+    private final int minTag, maxTag;
+    private final boolean definesRows;
+    private final HeaderReader reader = new HeaderReader();
+    private int nthreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Digest of a row key.
+     */
+    static final class RowKey {
+        private final long high, low;
+
+        private RowKey(final byte[] digest) {
+            final ByteBuffer buf = ByteBuffer.wrap(digest);
+            high = buf.getLong();
+            low = buf.getLong();
+        }
+
+        /**
+         * @param values key values, in key order; null and empty are equivalent
+         * @return digest of the key
+         */
+        static RowKey of(final Iterable<String> values) {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // every Java platform has MD5
+            }
+            for (final String v : values) {
+                if (null != v) {
+                    digest.update(v.getBytes(UTF8));
+                }
+                digest.update((byte)0);
+            }
+            return new RowKey(digest.digest());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof RowKey && high == ((RowKey)o).high && low == ((RowKey)o).low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(high ^ (high >>> 32));
+        }
+    }
+
+    /**
+     * Rows are made at the most specific level that defines rows, found as
+     * CSVSummaryBuilder descends from patient to instance.
+     * @param factory
+     * @return index of the row level in the factory's levels, or 0 if the factory defines no rows
+     */
+    private static int getRowLevel(final ConfigurableDirectoryRecordFactory factory) {
+        int rowLevel = 0;
+        if (factory.definesPatientRows()) {
+            rowLevel = 1;
+            if (factory.definesStudyRows()) {
+                rowLevel = 2;
+                if (factory.definesSeriesRows()) {
+                    rowLevel = 3;
+                    if (factory.definesInstanceRows()) {
+                        rowLevel = 4;
+                    }
+                }
+            }
+        }
+        return rowLevel;
+    }
+
+    /**
+     * Each row is identified by the selection keys of its level and all above it.
+     * @param factory
+     * @return tags of the row key attributes, or null if the factory defines no rows
+     */
+    static List<Integer> getRowKeyTags(final ConfigurableDirectoryRecordFactory factory) {
+        final int rowLevel = getRowLevel(factory);
+        if (0 == rowLevel) {
+            return null;
+        }
+        final List<Integer> tags = Lists.newArrayList();
+        for (final String level : Lists.newArrayList(factory.getLevels()).subList(0, rowLevel + 1)) {
+            tags.addAll(factory.getSelectionTags(level));
+        }
+        return tags;
+    }
+
+    public StreamingSummaryBuilder(final ConfigurableDirectoryRecordFactory factory) {
+        this.columns = Lists.newArrayList(factory.getColumns());
+        final List<Integer> rowKeyTags = getRowKeyTags(factory);
+        definesRows = null != rowKeyTags;
+        if (definesRows) {
+            keyTags.addAll(rowKeyTags);
+
+            // Attributes of each level from patient down to the row level, as
+            // in the directory records; global attributes are kept with the patient.
+            final List<String> levels = Lists.newArrayList(factory.getLevels());
+            final Collection<Integer> global = factory.getLevelTags(levels.get(0));
+            int keyLength = factory.getSelectionTags(levels.get(0)).size();
+            for (final String level : levels.subList(1, getRowLevel(factory) + 1)) {
+                final Set<Integer> tags = Sets.newLinkedHashSet(factory.getSelectionTags(level));
+                tags.addAll(factory.getLevelTags(level));
+                if (levelTags.isEmpty()) {
+                    tags.addAll(global);
+                }
+                levelTags.add(tags);
+                keyLength += factory.getSelectionTags(level).size();
+                levelKeyLengths.add(keyLength);
+            }
+        }
+
+        final Set<Integer> tags = Sets.newHashSet(keyTags);
+        tags.add(Tag.SOPInstanceUID);   // files without one aren't summarized
+        for (final DicomTableEntry col : columns) {
+            tags.add(col.getTag());
+        }
+        long min = 0xffffffffL, max = 0;
+        for (final int tag : tags) {
+            min = Math.min(min, tag & 0xffffffffL);
+            max = Math.max(max, tag & 0xffffffffL);
+        }
+        minTag = (int)min;
+        maxTag = (int)max;
+    }
+
+    /**
+     * Sets the number of threads reading files.
+     * @param threads
+     * @return this
+     */
+    public StreamingSummaryBuilder setParallelism(final int threads) {
+        this.nthreads = Math.max(1, threads);
+        return this;
+    }
+
+    private RowKey getRowKey(final Map<Integer,String> values) {
+        final List<String> key = Lists.newArrayList();
+        for (final int tag : keyTags) {
+            key.add(values.get(tag));
+        }
+        return RowKey.of(key);
+    }
+
+    /**
+     * Builds a row from the values of each level: for each patient, study, or
+     * series above the row level, the values of the first file read for it;
+     * for the row level, the values of this file.
+     * @param values attribute values from the first file read for the row
+     * @param entities values of each level above the row level, by key
+     * @return row
+     */
+    private String[] getRow(final Map<Integer,String> values,
+            final List<ConcurrentMap<RowKey,Map<Integer,String>>> entities) {
+        final Map<Integer,String> rowValues = Maps.newHashMap();
+        final List<String> key = Lists.newArrayList();
+        for (int level = 0; level < levelTags.size(); level++) {
+            final Map<Integer,String> levelValues = Maps.newHashMap();
+            for (final int tag : levelTags.get(level)) {
+                levelValues.put(tag, values.get(tag));
+            }
+            if (level < entities.size()) {
+                for (final int tag : keyTags.subList(key.size(), levelKeyLengths.get(level))) {
+                    key.add(values.get(tag));
+                }
+                final Map<Integer,String> first = entities.get(level).putIfAbsent(RowKey.of(key), levelValues);
+                rowValues.putAll(null == first ? levelValues : first);
+            } else {
+                rowValues.putAll(levelValues);
+            }
+        }
+
+        final Collection<String> row = Lists.newArrayList();
+        for (final DicomTableEntry col : columns) {
+            row.add(col.isSubstitution() ? EMPTY_STRING : rowValues.get(col.getTag()));
+        }
+        return row.toArray(STRING_ARRAY);
+    }
+
+    /**
+     * Writes the summary header and rows for the given files.
+     * @param spreadsheet destination
+     * @param pm progress monitor (may be null)
+     * @param files DICOM files or directories containing them
+     * @return number of rows written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int run(final CSVWriter spreadsheet, final ProgressMonitorI pm, final File...files)
+    throws IOException,InterruptedException {
+        final Collection<String> labels = Lists.newArrayList();
+        for (final DicomTableEntry col : columns) {
+            labels.add(col.getHeader());
+        }
+        spreadsheet.writeNext(labels.toArray(STRING_ARRAY));
+        if (!definesRows) {
+            spreadsheet.flush();
+            return 0;
+        }
+
+        final Set<RowKey> seen = Collections.newSetFromMap(new ConcurrentHashMap<RowKey,Boolean>());
+        final List<ConcurrentMap<RowKey,Map<Integer,String>>> entities = Lists.newArrayList();
+        for (int i = 1; i < levelTags.size(); i++) {
+            entities.add(new ConcurrentHashMap<RowKey,Map<Integer,String>>());
+        }
+        final AtomicInteger nread = new AtomicInteger(0), nrows = new AtomicInteger(0);
+        final Semaphore queued = new Semaphore(QUEUE_LENGTH_PER_THREAD * nthreads);
+        final ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        try {
+            for (final Iterator<File> i = new FileWalkIterator(Lists.newArrayList(files), null); i.hasNext(); ) {
+                if (null != pm && pm.isCanceled()) {
+                    break;
+                }
+                final File file = i.next();
+                if (AbstractFileExporter.isTempFile(file)) {
+                    continue;   // left by an interrupted export
+                }
+                queued.acquire();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            final Map<Integer,String> values = reader.readValues(file, minTag, maxTag);
+                            if (null == values.get(Tag.SOPInstanceUID)) {
+                                logger.debug("skipping {}: no SOP Instance UID", file);
+                            } else if (seen.add(getRowKey(values))) {
+                                final String[] row = getRow(values, entities);
+                                synchronized (spreadsheet) {
+                                    spreadsheet.writeNext(row);
+                                }
+                                nrows.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            logger.info("skipping unreadable file " + file, e);
+                        } catch (RuntimeException e) {
+                            logger.info("skipping unparseable file " + file, e);
+                        } finally {
+                            queued.release();
+                            if (null != pm) {
+                                pm.setProgress(nread.incrementAndGet());
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                logger.trace("waiting for summary readers to finish");
+            }
+        }
+        synchronized (spreadsheet) {
+            spreadsheet.flush();
+        }
+        return nrows.get();
+    }
+}
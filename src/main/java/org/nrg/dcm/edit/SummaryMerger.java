@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.dcm4che2.util.TagUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Combines partial summaries, made by DicomSummarize over disjoint shards of
+ * the input with the same configuration, into a single summary.  A row whose
+ * selection key values (patient, study, series, and instance, down to the row
+ * level) were already seen in an earlier partial is dropped, so an entity that
+ * spans shards appears once.  Partials are read in path order, so the result
+ * does not depend on the order in which they are named.
+ */
+public final class SummaryMerger {
+    private final Logger logger = LoggerFactory.getLogger(SummaryMerger.class);
+    private final String[] header;
+    private final int[] keyColumns;
+
+    /**
+     * @param factory summary configuration used to make the partials
+     * @throws IllegalArgumentException if a row key attribute has no column
+     */
+    public SummaryMerger(final ConfigurableDirectoryRecordFactory factory) {
+        final List<DicomTableEntry> columns = Lists.newArrayList(factory.getColumns());
+        header = new String[columns.size()];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = columns.get(i).getHeader();
+        }
+
+        final List<Integer> keyTags = StreamingSummaryBuilder.getRowKeyTags(factory);
+        final List<Integer> keys = Lists.newArrayList();
+        if (null != keyTags) {
+            for (final int tag : keyTags) {
+                final int column = getColumn(columns, tag);
+                if (column < 0) {
+                    // Without all of the key, distinct rows would be merged.
+                    throw new IllegalArgumentException("summary has no column for row key attribute "
+                            + TagUtils.toString(tag));
+                }
+                keys.add(column);
+            }
+        }
+        keyColumns = new int[keys.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = keys.get(i);
+        }
+    }
+
+    private static int getColumn(final List<DicomTableEntry> columns, final int tag) {
+        for (int i = 0; i < columns.size(); i++) {
+            final DicomTableEntry col = columns.get(i);
+            if (tag == col.getTag() && !col.isSubstitution()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private StreamingSummaryBuilder.RowKey getRowKey(final String[] row) {
+        final List<String> key = Lists.newArrayList();
+        for (final int i : keyColumns) {
+            key.add(i < row.length ? row[i] : null);
+        }
+        return StreamingSummaryBuilder.RowKey.of(key);
+    }
+
+    /**
+     * Writes the merged summary.
+     * @param out destination
+     * @param partials partial summary files
+     * @return number of rows written
+     * @throws IOException if a partial can't be read, or has different columns
+     */
+    public int run(final CSVWriter out, final File...partials) throws IOException {
+        final List<File> sorted = Lists.newArrayList(partials);
+        Collections.sort(sorted);
+
+        out.writeNext(header);
+        final Set<StreamingSummaryBuilder.RowKey> seen = Sets.newHashSet();
+        int nrows = 0;
+        for (final File partial : sorted) {
+            IOException ioexception = null;
+            final CSVReader in = new CSVReader(new FileReader(partial));
+            try {
+                final String[] partialHeader = in.readNext();
+                if (null == partialHeader) {
+                    logger.info("{} is empty", partial);
+                    continue;
+                } else if (!Arrays.equals(header, partialHeader)) {
+                    throw new IOException(partial + " has columns " + Arrays.toString(partialHeader)
+                            + "; expected " + Arrays.toString(header));
+                }
+                for (String[] row = in.readNext(); null != row; row = in.readNext()) {
+                    if (seen.add(getRowKey(row))) {
+                        out.writeNext(row);
+                        nrows++;
+                    }
+                }
+            } catch (IOException e) {
+                throw ioexception = e;
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    throw null == ioexception ? e : ioexception;
+                }
+            }
+        }
+        out.flush();
+        return nrows;
+    }
+}
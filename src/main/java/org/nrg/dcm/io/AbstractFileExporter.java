@@ -6,11 +6,22 @@ package org.nrg.dcm.io;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.GZIPOutputStream;
 
 import org.dcm4che2.data.BasicDicomObject;
@@ -19,16 +30,85 @@ import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.VR;
 import org.dcm4che2.io.DicomOutputStream;
 import org.nrg.dcm.DicomUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
+ * Base class for exporters that write each object to a file.
+ * Exporters that stage their files (those that overwrite the source) write each
+ * file to a hidden temporary sibling of its destination, sync it to disk, and
+ * then rename it into place, so an interrupted export never leaves a partial
+ * file at the destination or destroys the source.  The renames are committed in
+ * batches, each followed by one sync per affected directory; close() commits
+ * any files still staged.  Other exporters write directly to the destination.
  * @author Kevin A. Archie <karchie@wustl.edu>
  *
  */
 public abstract class AbstractFileExporter implements DicomObjectExporter,Closeable {
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String TEMP_PREFIX = ".", TEMP_SUFFIX = ".tmp";
+    private static final int SYNC_BATCH_SIZE = 64;
+    private static final int PREAMBLE_LENGTH = 128;
+    private static final byte[] DICM = {'D', 'I', 'C', 'M'};
+    private static final int GROUP_LENGTH_ELEMENT_LENGTH = 12;  // tag, VR, length, UL value
+
+    private final Logger logger = LoggerFactory.getLogger(AbstractFileExporter.class);
     private final String aeTitle;
+    private final boolean staging;
+    private final List<Staged> staged = Lists.newArrayList();
+    private final Map<File,Throwable> commitFailures = Collections.synchronizedMap(Maps.<File,Throwable>newLinkedHashMap());
+
+    /**
+     * Completely written temporary file, waiting to be renamed to its destination.
+     */
+    private static final class Staged {
+        private final File source, temp, dest;
+
+        Staged(final File source, final File temp, final File dest) {
+            this.source = source;
+            this.temp = temp;
+            this.dest = dest;
+        }
+    }
 
     AbstractFileExporter(final String aeTitle) {
+        this(aeTitle, false);
+    }
+
+    /**
+     * @param aeTitle Source Application Entity Title for written files
+     * @param staging true if files should be written through synced temporary
+     *  files and renamed into place, false to write each destination directly
+     */
+    AbstractFileExporter(final String aeTitle, final boolean staging) {
         this.aeTitle = aeTitle;
+        this.staging = staging;
+    }
+
+    /**
+     * Identifies the temporary files used for staging, which an interrupted
+     * export may leave behind next to its destinations.  These are complete
+     * copies of other files, so they should be skipped when collecting files.
+     * @param file
+     * @return true if the file is named like a staging temporary file
+     */
+    public static boolean isTempFile(final File file) {
+        final String name = file.getName();
+        return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * @return staged files that could not be committed to their destinations,
+     *  by source file, with the cause of each failure
+     */
+    public Map<File,Throwable> getCommitFailures() {
+        synchronized (commitFailures) {
+            return Maps.newLinkedHashMap(commitFailures);
+        }
     }
 
     protected abstract File map(File source);
@@ -37,47 +117,191 @@ public abstract class AbstractFileExporter implements DicomObjectExporter,Closea
         return o.contains(Tag.MediaStorageSOPClassUID) && o.contains(Tag.MediaStorageSOPInstanceUID);
     }
 
-    /*
-     * (non-Javadoc)
-     * @see org.nrg.dcm.io.DicomObjectExporter#close()
+    /**
+     * Finds the start of the dataset in a Part 10 file from the preamble and
+     * the File Meta Information Group Length.
+     * @param channel source file
+     * @return offset of the first dataset byte, or -1 if the file doesn't start
+     *  with a preamble and an explicit VR little endian group length
+     * @throws IOException
      */
-    public final void close() {}
+    private static long getDatasetOffset(final FileChannel channel) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(PREAMBLE_LENGTH + DICM.length + GROUP_LENGTH_ELEMENT_LENGTH);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) {
+                return -1;
+            }
+        }
+        for (int i = 0; i < DICM.length; i++) {
+            if (DICM[i] != buf.get(PREAMBLE_LENGTH + i)) {
+                return -1;
+            }
+        }
+        final int p = PREAMBLE_LENGTH + DICM.length;
+        if (0x0002 != buf.getShort(p) || 0x0000 != buf.getShort(p + 2)     // (0002,0000) group length
+                || 'U' != buf.get(p + 4) || 'L' != buf.get(p + 5) || 4 != buf.getShort(p + 6)) {
+            return -1;
+        }
+        final long offset = buf.capacity() + (buf.getInt(p + 8) & 0xffffffffL);
+        return offset <= channel.size() ? offset : -1;
+    }
 
-    /* (non-Javadoc)
-     * @see org.nrg.dcm.io.DicomObjectExporter#export(org.dcm4che2.data.DicomObject, java.io.File)
+    /**
+     * Copies an unmodified object: only the File Meta Information is rewritten
+     * (with our Source Application Entity Title); the dataset bytes are copied
+     * directly from the source file.  The source is never the destination,
+     * so the copy is written directly and not staged.
+     * @param source
+     * @param dest
+     * @return true if the object was copied, false if the file layout doesn't
+     *  allow a direct copy and the object must be written the long way
+     * @throws IOException
      */
-    public final void export(final DicomObject o, final File source)
-    throws IOException,MalformedURLException,URISyntaxException {
-        final DicomObject dcmo = null == o ? DicomUtils.read(source) : o;
-        final DicomObject fmi;
-        if (hasFileMetaInformation(dcmo)) {
-            fmi = dcmo.fileMetaInfo();
-        } else {
-            // Part 10 header ends after group 0002, but read() checks SOP Class UID
-            // to ensure file validity so we need to read at least that far.
-            final DicomObject original = DicomUtils.read(source, Tag.SOPClassUID);
-            if (hasFileMetaInformation(original)) {
-                fmi = original.fileMetaInfo();
-            } else {
-                // Build a new Part 10 header.
-                fmi = new BasicDicomObject();
-                fmi.initFileMetaInformation(dcmo.getString(Tag.SOPClassUID),
-                        dcmo.getString(Tag.SOPInstanceUID),
-                        DicomUtils.getTransferSyntaxUID(original));
-                fmi.putString(Tag.MediaStorageSOPInstanceUID, VR.UI, dcmo.getString(Tag.SOPInstanceUID));
+    private boolean copyDataset(final File source, final File dest) throws IOException {
+        if (source.getName().endsWith(GZIP_SUFFIX) || dest.getName().endsWith(GZIP_SUFFIX)
+                || source.getAbsoluteFile().equals(dest.getAbsoluteFile())) {
+            return false;
+        }
+        final DicomObject original = DicomUtils.read(source, Tag.SOPClassUID);
+        if (!hasFileMetaInformation(original)) {
+            return false;
+        }
+        final DicomObject fmi = original.fileMetaInfo();
+        fmi.putString(Tag.SourceApplicationEntityTitle, VR.AE, aeTitle);
+
+        IOException ioexception = null;
+        final FileInputStream fis = new FileInputStream(source);
+        try {
+            final FileChannel in = fis.getChannel();
+            final long offset = getDatasetOffset(in);
+            if (offset < 0) {
+                return false;
+            }
+            dest.getAbsoluteFile().getParentFile().mkdirs();
+            final FileOutputStream fos = new FileOutputStream(dest);
+            try {
+                final DicomOutputStream dos = new DicomOutputStream(new BufferedOutputStream(fos));
+                dos.writeFileMetaInformation(fmi);
+                dos.flush();
+                final FileChannel out = fos.getChannel();
+                final long size = in.size();
+                for (long position = offset; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                return true;
+            } catch (IOException e) {
+                throw ioexception = e;
+            } finally {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    throw ioexception = null == ioexception ? e : ioexception;
+                }
+            }
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException e) {
+                throw null == ioexception ? e : ioexception;
             }
         }
-        final String tsuid = DicomUtils.getTransferSyntaxUID(fmi);
+    }
 
-        fmi.putString(Tag.SourceApplicationEntityTitle, VR.AE, aeTitle);
+    private static File createTempFile(final File dest) throws IOException {
+        final File dir = dest.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        return File.createTempFile(TEMP_PREFIX + dest.getName() + ".", TEMP_SUFFIX, dir);
+    }
 
-        final File dest = map(source);
-        dest.getParentFile().mkdirs();
+    private static void rename(final Staged s) throws IOException {
+        Files.move(s.temp.toPath(), s.dest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Queues a completely written temporary file to be renamed into place,
+     * and commits the queue if it has reached the batch size.
+     */
+    private void stage(final Staged s) {
+        final List<Staged> batch;
+        synchronized (staged) {
+            staged.add(s);
+            if (staged.size() < SYNC_BATCH_SIZE) {
+                return;
+            }
+            batch = Lists.newArrayList(staged);
+            staged.clear();
+        }
+        commit(batch);
+    }
+
+    /**
+     * Renames a batch of temporary files, already synced when they were written,
+     * to their destinations, and syncs the affected directories so the renames
+     * are durable too.  Failures are recorded by source file.
+     */
+    private void commit(final List<Staged> batch) {
+        final Set<File> dirs = Sets.newLinkedHashSet();
+        for (final Staged s : batch) {
+            try {
+                rename(s);
+                dirs.add(s.dest.getAbsoluteFile().getParentFile());
+            } catch (IOException e) {
+                logger.error("unable to commit " + s.temp + " to " + s.dest, e);
+                s.temp.delete();
+                commitFailures.put(s.source, e);
+            }
+        }
+        for (final File dir : dirs) {
+            try {
+                final FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                logger.trace("unable to sync directory " + dir, e);   // not supported on all platforms
+            }
+        }
+        logger.debug("committed {} files", batch.size());
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.io.DicomObjectExporter#close()
+     */
+    public final void close() {
+        final List<Staged> batch;
+        synchronized (staged) {
+            batch = Lists.newArrayList(staged);
+            staged.clear();
+        }
+        if (!batch.isEmpty()) {
+            commit(batch);
+        }
+    }
+
+    /**
+     * Writes the File Meta Information and dataset to a file.
+     * @param file destination
+     * @param gzip true if the file should be gzip-compressed
+     * @param fmi File Meta Information
+     * @param dataset
+     * @param tsuid transfer syntax for the dataset
+     * @param sync true if the file should be synced to disk before it is closed
+     * @throws IOException
+     */
+    private static void write(final File file, final boolean gzip,
+            final DicomObject fmi, final DicomObject dataset, final String tsuid,
+            final boolean sync)
+    throws IOException {
         IOException ioexception = null;
-        final FileOutputStream fos = new FileOutputStream(dest);
+        final FileOutputStream fos = new FileOutputStream(file);
         try {
             final OutputStream os;
-            if (dest.getName().endsWith(".gz")) {
+            if (gzip) {
                 os = new GZIPOutputStream(fos);
             } else {
                 os = new BufferedOutputStream(fos);
@@ -86,7 +310,14 @@ public abstract class AbstractFileExporter implements DicomObjectExporter,Closea
                 final DicomOutputStream dos = new DicomOutputStream(os);
                 try {
                     dos.writeFileMetaInformation(fmi);
-                    dos.writeDataset(o, tsuid);
+                    dos.writeDataset(dataset, tsuid);
+                    if (sync) {
+                        dos.flush();
+                        if (gzip) {
+                            ((GZIPOutputStream)os).finish();
+                        }
+                        fos.getChannel().force(true);
+                    }
                 } catch (IOException e) {
                     throw ioexception = e;
                 } finally {
@@ -111,4 +342,78 @@ public abstract class AbstractFileExporter implements DicomObjectExporter,Closea
             }
         }
     }
+
+    /**
+     * Writes an object to the file mapped from its source.
+     * When the destination is the source file, changes to the header are patched
+     * into the file where possible; otherwise the object is written like any other.
+     * @param o object to be written, or null if the source file is unmodified;
+     *  unmodified files are copied without decoding the dataset where possible
+     * @param source file from which the object was read
+     * @see org.nrg.dcm.io.DicomObjectExporter#export(org.dcm4che2.data.DicomObject, java.io.File)
+     */
+    public final void export(final DicomObject o, final File source)
+    throws IOException,MalformedURLException,URISyntaxException {
+        final File dest = map(source);
+        final boolean gzip = dest.getName().endsWith(GZIP_SUFFIX);
+        final boolean overwrite = source.getAbsoluteFile().equals(dest.getAbsoluteFile());
+        if (null == o) {
+            if (copyDataset(source, dest)) {
+                return;
+            } else if (overwrite && !gzip) {
+                // Only the Source Application Entity Title changes; try to avoid a full read.
+                final DicomObject original = DicomUtils.read(source, Tag.SOPClassUID);
+                if (hasFileMetaInformation(original)) {
+                    final DicomObject fmi = original.fileMetaInfo();
+                    fmi.putString(Tag.SourceApplicationEntityTitle, VR.AE, aeTitle);
+                    if (InPlacePatcher.patch(source, fmi, null)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        final DicomObject dcmo = null == o ? DicomUtils.read(source) : o;
+        final DicomObject fmi;
+        if (hasFileMetaInformation(dcmo)) {
+            fmi = dcmo.fileMetaInfo();
+        } else {
+            // Part 10 header ends after group 0002, but read() checks SOP Class UID
+            // to ensure file validity so we need to read at least that far.
+            final DicomObject original = DicomUtils.read(source, Tag.SOPClassUID);
+            if (hasFileMetaInformation(original)) {
+                fmi = original.fileMetaInfo();
+            } else {
+                // Build a new Part 10 header.
+                fmi = new BasicDicomObject();
+                fmi.initFileMetaInformation(dcmo.getString(Tag.SOPClassUID),
+                        dcmo.getString(Tag.SOPInstanceUID),
+                        DicomUtils.getTransferSyntaxUID(original));
+                fmi.putString(Tag.MediaStorageSOPInstanceUID, VR.UI, dcmo.getString(Tag.SOPInstanceUID));
+            }
+        }
+        final String tsuid = DicomUtils.getTransferSyntaxUID(fmi);
+
+        fmi.putString(Tag.SourceApplicationEntityTitle, VR.AE, aeTitle);
+
+        if (overwrite && !gzip && null != o && InPlacePatcher.patch(source, fmi, dcmo)) {
+            return;
+        }
+        if (staging) {
+            final File temp = createTempFile(dest);
+            boolean isStaged = false;
+            try {
+                write(temp, gzip, fmi, dcmo, tsuid, true);
+                stage(new Staged(source, temp, dest));
+                isStaged = true;
+            } finally {
+                if (!isStaged) {
+                    temp.delete();
+                }
+            }
+        } else {
+            dest.getAbsoluteFile().getParentFile().mkdirs();
+            write(dest, gzip, fmi, dcmo, tsuid, false);
+        }
+    }
 }
@@ -47,7 +47,13 @@ public class CStoreExporter implements DicomObjectExporter {
     public CStoreExporter(final String host, final String port,
 	    final boolean isTLS, final String remAETitle, final String locAETitle,
 	    final TransferCapability[] tcs) {
-	this(buildSender(host, port, remAETitle, locAETitle, tcs, isTLS ? TlsType.AES : null, false, yesManagers));
+	this(buildSender(host, port, isTLS, remAETitle, locAETitle, tcs));
+    }
+
+    static DicomSender buildSender(final String host, final String port,
+	    final boolean isTLS, final String remAETitle, final String locAETitle,
+	    final TransferCapability[] tcs) {
+	return buildSender(host, port, remAETitle, locAETitle, tcs, isTLS ? TlsType.AES : null, false, yesManagers);
     }
 
     private static DicomSender buildSender(final String remHost, final String remPort,
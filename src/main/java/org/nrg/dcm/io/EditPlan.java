@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.VR;
+import org.nrg.dcm.edit.Action;
+import org.nrg.dcm.edit.Assignment;
+import org.nrg.dcm.edit.AttributeException;
+import org.nrg.dcm.edit.Deletion;
+import org.nrg.dcm.edit.Operation;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Operations to be applied to each of a set of files, compiled from the
+ * operations assigned to each file rather than from Statements, so applying
+ * them needs neither a Constraint evaluation per statement per file nor an
+ * Action per operation.  Assignments of constant values and deletions are
+ * applied directly from flat arrays of tags and values; any other operation
+ * falls back to its Action.  Files with the same operations share one compiled
+ * list of steps.
+ */
+public final class EditPlan {
+    private static final byte ASSIGN = 0, DELETE = 1, GENERIC = 2;
+    private static final Operation[] NO_OPERATIONS = {};
+    private static final Map<Integer,String> NO_VALUES = Collections.emptyMap();
+
+    private final Map<File,Steps> steps;
+
+    /**
+     * Compiled operations for one file, in tag order.
+     */
+    private static final class Steps {
+        private final int[] tags;
+        private final byte[] kinds;
+        private final String[] values;
+        private final Operation[] generic;
+
+        Steps(final List<Operation> ops) {
+            tags = new int[ops.size()];
+            kinds = new byte[ops.size()];
+            values = new String[ops.size()];
+            final List<Operation> others = Lists.newArrayList();
+            for (int i = 0; i < tags.length; i++) {
+                final Operation op = ops.get(i);
+                tags[i] = op.getTopTag();
+                kinds[i] = GENERIC;
+                if (op instanceof Assignment && op.getRequiredTags().isEmpty()) {
+                    // A constant assignment doesn't need any attribute values.
+                    try {
+                        values[i] = op.apply(NO_VALUES);
+                        kinds[i] = ASSIGN;
+                    } catch (Exception e) {
+                        // not a constant value; use its Action
+                    }
+                } else if (op instanceof Deletion) {
+                    kinds[i] = DELETE;
+                }
+                if (GENERIC == kinds[i]) {
+                    others.add(op);
+                }
+            }
+            generic = others.isEmpty() ? NO_OPERATIONS : others.toArray(NO_OPERATIONS);
+        }
+
+        void apply(final DicomObject o) throws AttributeException {
+            // As for Statements, Actions are made before any operation is applied.
+            final Action[] actions = 0 == generic.length ? null : new Action[generic.length];
+            for (int i = 0; i < generic.length; i++) {
+                actions[i] = generic[i].makeAction(o);
+            }
+            // Then all operations are applied in one pass, in tag order.
+            for (int i = 0, g = 0; i < tags.length; i++) {
+                switch (kinds[i]) {
+                case ASSIGN:
+                    final int tag = tags[i];
+                    final VR vr = o.contains(tag) ? o.get(tag).vr() : o.vrOf(tag);
+                    o.putString(tag, vr, values[i]);
+                    break;
+                case DELETE:
+                    o.remove(tags[i]);
+                    break;
+                default:
+                    actions[g++].apply();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static final Comparator<Operation> TAG_ORDER = new Comparator<Operation>() {
+        public int compare(final Operation a, final Operation b) {
+            final long ta = a.getTopTag() & 0xffffffffL, tb = b.getTopTag() & 0xffffffffL;
+            return ta < tb ? -1 : ta > tb ? 1 : 0;
+        }
+    };
+
+    /**
+     * Collects the operations for each file.
+     */
+    public static final class Builder {
+        private final Map<File,List<Operation>> ops = Maps.newLinkedHashMap();
+
+        /**
+         * Adds an operation to be applied to the given files.
+         * @param op
+         * @param files
+         * @return this
+         */
+        public Builder add(final Operation op, final Iterable<File> files) {
+            for (final File file : files) {
+                List<Operation> fops = ops.get(file);
+                if (null == fops) {
+                    ops.put(file, fops = Lists.newArrayListWithCapacity(2));
+                }
+                fops.add(op);
+            }
+            return this;
+        }
+
+        public EditPlan build() {
+            final Map<List<Operation>,Steps> interned = Maps.newHashMap();
+            final Map<File,Steps> steps = Maps.newHashMapWithExpectedSize(ops.size());
+            for (final Map.Entry<File,List<Operation>> e : ops.entrySet()) {
+                final List<Operation> fops = e.getValue();
+                Collections.sort(fops, TAG_ORDER);
+                Steps s = interned.get(fops);
+                if (null == s) {
+                    interned.put(fops, s = new Steps(fops));
+                }
+                steps.put(e.getKey(), s);
+            }
+            return new EditPlan(steps);
+        }
+    }
+
+    private EditPlan(final Map<File,Steps> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * @param file
+     * @return true if any operation is to be applied to the file
+     */
+    public boolean modifies(final File file) {
+        return steps.containsKey(file);
+    }
+
+    /**
+     * Applies the operations for the given file.
+     * @param file file from which the object was read
+     * @param o object to be modified
+     * @return true if the object was modified
+     * @throws AttributeException
+     */
+    public boolean apply(final File file, final DicomObject o) throws AttributeException {
+        final Steps s = steps.get(file);
+        if (null == s) {
+            return false;
+        } else {
+            s.apply(o);
+            return true;
+        }
+    }
+}
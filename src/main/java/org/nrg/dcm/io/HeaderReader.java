@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.SpecificCharacterSet;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Streaming reader for DICOM file headers.  Parsing stops at the first top-level
+ * attribute beyond the requested tag range (and never later than Pixel Data), so
+ * pixel data and anything else past the range are neither read nor buffered.
+ * The number of bytes actually read from disk is recorded for each file.
+ * Instances are thread safe.
+ */
+public final class HeaderReader {
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String DEFAULT_TRUNCATE_FORMAT = "%1$s...";
+    private static final String UNCONVERTIBLE_VALUE = "";
+    private static final Joiner VALUE_JOINER = Joiner.on('\\').useForNull("");
+
+    private final Logger logger = LoggerFactory.getLogger(HeaderReader.class);
+    private final AtomicLong bytesRead = new AtomicLong(0);
+    private final AtomicLong filesRead = new AtomicLong(0);
+    private volatile int maxValueLength = 0;
+    private volatile String truncateFormat = DEFAULT_TRUNCATE_FORMAT;
+
+    /**
+     * Sets the maximum length of converted values; longer values are truncated
+     * and formatted with the truncate format.
+     * @param maxValueLength maximum value length; zero or negative for no limit
+     */
+    public void setMaxValueLength(final int maxValueLength) {
+        this.maxValueLength = maxValueLength;
+    }
+
+    /**
+     * Sets the format for truncated values; the truncated value is argument 1.
+     * @param format
+     */
+    public void setTruncateFormat(final String format) {
+        this.truncateFormat = format;
+    }
+
+    /**
+     * @return total number of bytes read from disk by this reader
+     */
+    public long getBytesRead() { return bytesRead.get(); }
+
+    /**
+     * @return number of files read by this reader
+     */
+    public long getFilesRead() { return filesRead.get(); }
+
+    private static int getStopTag(final int maxTag) {
+        if ((maxTag & 0xffffffffL) < (Tag.PixelData & 0xffffffffL)) {
+            return maxTag + 1;
+        } else {
+            return Tag.PixelData;
+        }
+    }
+
+    /**
+     * Reads the top-level attributes up to and including maxTag.
+     * @param file DICOM file, optionally gzip-compressed (name ending in .gz)
+     * @param maxTag last attribute to be read
+     * @return DicomObject containing the file meta information and the attributes read
+     * @throws IOException
+     */
+    public DicomObject read(final File file, final int maxTag) throws IOException {
+        final CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+        IOException ioexception = null;
+        try {
+            final InputStream in;
+            if (file.getName().endsWith(GZIP_SUFFIX)) {
+                in = new BufferedInputStream(new GZIPInputStream(counter));
+            } else {
+                in = new BufferedInputStream(counter);
+            }
+            final DicomInputStream dis = new DicomInputStream(in);
+            try {
+                dis.setHandler(new StopTagInputHandler(getStopTag(maxTag)));
+                final DicomObject o = new BasicDicomObject();
+                dis.readDicomObject(o, -1);
+                return o;
+            } catch (IOException e) {
+                throw ioexception = e;
+            } finally {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    throw ioexception = null == ioexception ? e : ioexception;
+                }
+            }
+        } finally {
+            try {
+                counter.close();
+            } catch (IOException e) {
+                throw null == ioexception ? e : ioexception;
+            } finally {
+                final long count = counter.getCount();
+                bytesRead.addAndGet(count);
+                filesRead.incrementAndGet();
+                logger.debug("{}: read {} of {} bytes", new Object[]{file, count, file.length()});
+            }
+        }
+    }
+
+    /**
+     * Reads the top-level attributes in the indicated range and converts them
+     * to strings.  Sequence attributes map to null; multiple values are separated
+     * by backslashes, as in the DICOM encoding.
+     * @param file DICOM file, optionally gzip-compressed (name ending in .gz)
+     * @param minTag first attribute to be read
+     * @param maxTag last attribute to be read
+     * @return map from tag to value, in increasing tag order
+     * @throws IOException
+     */
+    public Map<Integer,String> readValues(final File file, final int minTag, final int maxTag)
+    throws IOException {
+        final DicomObject o = read(file, maxTag);
+        final SpecificCharacterSet cs = o.getSpecificCharacterSet();
+        final Map<Integer,String> values = Maps.newLinkedHashMap();
+        for (final Iterator<DicomElement> i = o.iterator(minTag, maxTag); i.hasNext(); ) {
+            final DicomElement e = i.next();
+            values.put(e.tag(), convert(e, cs));
+        }
+        return values;
+    }
+
+    private String convert(final DicomElement e, final SpecificCharacterSet cs) {
+        if (VR.SQ == e.vr()) {
+            return null;
+        }
+        final String v;
+        try {
+            v = VALUE_JOINER.join(e.getStrings(cs, false));
+        } catch (RuntimeException ex) {
+            logger.trace("unable to convert " + e, ex);
+            return UNCONVERTIBLE_VALUE;
+        }
+        final int maxlen = maxValueLength;
+        if (maxlen > 0 && v.length() > maxlen) {
+            return String.format(truncateFormat, v.substring(0, maxlen));
+        } else {
+            return v;
+        }
+    }
+}
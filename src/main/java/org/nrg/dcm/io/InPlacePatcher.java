@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputHandler;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Writes a modified object back into its source file by patching only the
+ * changed attribute values.  A changed value can be patched if it has the same
+ * VR as the original, is a string, and fits in the original value length; shorter
+ * values are padded with trailing spaces, which are not significant for these VRs.
+ * Everything from Pixel Data on must be unchanged; it is compared with the file
+ * contents but never rewritten.
+ * Adding or removing attributes, changed sequences, and changed binary values
+ * all require a full rewrite; so does absorbing a size change into a trailing
+ * padding attribute, which isn't attempted.
+ */
+final class InPlacePatcher {
+    private static final Logger logger = LoggerFactory.getLogger(InPlacePatcher.class);
+    private static final int FMI_MIN_TAG = 0x00020000, FMI_MAX_TAG = 0x0002ffff;
+    private static final int DATASET_MIN_TAG = 0x00030000;
+    private static final Set<VR> SPACE_PADDED = ImmutableSet.of(VR.AE, VR.AS, VR.CS, VR.DA, VR.DS, VR.DT,
+            VR.IS, VR.LO, VR.LT, VR.PN, VR.SH, VR.ST, VR.TM, VR.UT);
+    private static final byte SPACE = ' ';
+
+    private InPlacePatcher() {}
+
+    /**
+     * Records the file offset of each top-level attribute value, and stops
+     * parsing at Pixel Data (or whatever top-level attribute follows it).
+     */
+    private static final class Layout implements DicomInputHandler {
+        private final Map<Integer,Long> valueOffsets = Maps.newHashMap();
+        private int tailTag = 0;
+        private long tailOffset = -1;
+
+        private static int getHeaderLength(final DicomInputStream in) {
+            if (!in.getTransferSyntax().explicitVR() && 0x0002 != (in.tag() >>> 16)) {
+                return 8;
+            }
+            final VR vr = in.vr();
+            return VR.OB == vr || VR.OW == vr || VR.OF == vr || VR.SQ == vr || VR.UT == vr || VR.UN == vr ? 12 : 8;
+        }
+
+        public boolean readValue(final DicomInputStream in) throws IOException {
+            if (0 == in.level()) {
+                final int tag = in.tag();
+                if ((tag & 0xffffffffL) >= (Tag.PixelData & 0xffffffffL)) {
+                    tailTag = tag;
+                    tailOffset = in.getStreamPosition() - getHeaderLength(in);
+                    return false;
+                }
+                valueOffsets.put(tag, in.getStreamPosition());
+            }
+            return in.readValue(in);
+        }
+    }
+
+    /**
+     * New bytes for one attribute value.
+     */
+    private static final class Patch {
+        private final long offset;
+        private final byte[] value;
+
+        Patch(final long offset, final byte[] value) {
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    /**
+     * OutputStream that compares everything written to it with the contents
+     * of a file, starting at a given offset.
+     */
+    private static final class ComparingOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+        private boolean same = true;
+        private ByteBuffer buf = ByteBuffer.allocate(8192);
+
+        ComparingOutputStream(final FileChannel channel, final long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (!same) {
+                return;
+            }
+            if (buf.capacity() < len) {
+                buf = ByteBuffer.allocate(len);
+            }
+            buf.clear();
+            buf.limit(len);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    same = false;
+                    return;
+                }
+            }
+            for (int i = 0; i < len; i++) {
+                if (buf.get(i) != b[off + i]) {
+                    same = false;
+                    return;
+                }
+            }
+            position += len;
+        }
+
+        boolean matchesThrough(final long end) {
+            return same && position == end;
+        }
+    }
+
+    private static byte[] encode(final DicomElement e, final TransferSyntax ts) throws IOException {
+        final DicomObject o = new BasicDicomObject();
+        o.add(e);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DicomOutputStream dos = new DicomOutputStream(bytes);
+        dos.writeDataset(o, ts);
+        dos.close();
+        return bytes.toByteArray();
+    }
+
+    private static boolean isSame(final DicomElement a, final DicomElement b, final TransferSyntax ts)
+    throws IOException {
+        if (a.vr() != b.vr()) {
+            return false;
+        } else if (!a.hasItems() && !b.hasItems() && a.bigEndian() == b.bigEndian()) {
+            return Arrays.equals(a.getBytes(), b.getBytes());
+        } else {
+            return Arrays.equals(encode(a, ts), encode(b, ts));
+        }
+    }
+
+    private static Map<Integer,DicomElement> getElements(final DicomObject o, final int min, final int max) {
+        final Map<Integer,DicomElement> elements = Maps.newLinkedHashMap();
+        for (final Iterator<DicomElement> i = o.iterator(min, max); i.hasNext(); ) {
+            final DicomElement e = i.next();
+            elements.put(e.tag(), e);
+        }
+        return elements;
+    }
+
+    /**
+     * Adds the patches needed to turn the original attributes into the modified ones.
+     * @return true if the difference can be patched in place
+     */
+    private static boolean diff(final Map<Integer,DicomElement> original, final Map<Integer,DicomElement> modified,
+            final TransferSyntax ts, final Layout layout, final List<Patch> patches) throws IOException {
+        if (!original.keySet().equals(modified.keySet())) {
+            return false;
+        }
+        for (final Map.Entry<Integer,DicomElement> me : original.entrySet()) {
+            final DicomElement o = me.getValue(), n = modified.get(me.getKey());
+            if (isSame(o, n, ts)) {
+                continue;
+            }
+            final VR vr = o.vr();
+            final Long offset = layout.valueOffsets.get(me.getKey());
+            if (vr != n.vr() || n.hasItems() || o.length() < 0 || null == offset
+                    || !(VR.UI == vr || SPACE_PADDED.contains(vr))) {
+                return false;
+            }
+            final byte[] value = n.getBytes();
+            if (value.length > o.length() || (VR.UI == vr && value.length != o.length())) {
+                return false;
+            }
+            final byte[] padded = Arrays.copyOf(value, o.length());
+            Arrays.fill(padded, value.length, padded.length, SPACE);
+            patches.add(new Patch(offset, padded));
+        }
+        return true;
+    }
+
+    /**
+     * Writes the changes, if any, from the original file contents to the given
+     * File Meta Information and dataset, if they can be patched into the file.
+     * @param file file to be modified
+     * @param fmi new File Meta Information
+     * @param dataset new dataset, or null if the dataset is unchanged
+     * @return true if the file was patched (or needed no changes); false if it
+     *  was left unmodified and must be rewritten
+     * @throws IOException
+     */
+    static boolean patch(final File file, final DicomObject fmi, final DicomObject dataset)
+    throws IOException {
+        final Layout layout = new Layout();
+        final DicomObject original = new BasicDicomObject();
+        final TransferSyntax ts;
+        IOException ioexception = null;
+        final DicomInputStream dis = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            dis.setHandler(layout);
+            dis.readDicomObject(original, -1);
+            ts = dis.getTransferSyntax();
+        } catch (IOException e) {
+            throw ioexception = e;
+        } finally {
+            try {
+                dis.close();
+            } catch (IOException e) {
+                throw null == ioexception ? e : ioexception;
+            }
+        }
+        if (ts.deflated() || original.isEmpty()) {
+            return false;
+        }
+
+        final List<Patch> patches = Lists.newArrayList();
+        if (!diff(getElements(original, FMI_MIN_TAG, FMI_MAX_TAG), getElements(fmi, FMI_MIN_TAG, FMI_MAX_TAG),
+                TransferSyntax.ExplicitVRLittleEndian, layout, patches)) {
+            return false;
+        }
+        if (null != dataset) {
+            final int maxHeaderTag = layout.tailOffset < 0 ? 0xffffffff : layout.tailTag - 1;
+            if (!diff(getElements(original, DATASET_MIN_TAG, maxHeaderTag),
+                    getElements(dataset, DATASET_MIN_TAG, maxHeaderTag), ts, layout, patches)) {
+                return false;
+            }
+            if (!isTailSame(file, layout, dataset, ts)) {
+                return false;
+            }
+        }
+
+        if (!patches.isEmpty()) {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = raf.getChannel();
+                for (final Patch patch : patches) {
+                    final ByteBuffer buf = ByteBuffer.wrap(patch.value);
+                    while (buf.hasRemaining()) {
+                        channel.write(buf, patch.offset + buf.position());
+                    }
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                throw ioexception = e;
+            } finally {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    throw null == ioexception ? e : ioexception;
+                }
+            }
+        }
+        logger.debug("patched {} attribute values in {}", patches.size(), file);
+        return true;
+    }
+
+    /**
+     * Compares the encoded Pixel Data and following attributes of the modified
+     * dataset with the file contents.
+     */
+    private static boolean isTailSame(final File file, final Layout layout, final DicomObject dataset,
+            final TransferSyntax ts) throws IOException {
+        final DicomObject tail = new BasicDicomObject();
+        if (layout.tailOffset >= 0) {
+            for (final Iterator<DicomElement> i = dataset.iterator(layout.tailTag, 0xffffffff); i.hasNext(); ) {
+                tail.add(i.next());
+            }
+        }
+        IOException ioexception = null;
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            final FileChannel channel = fis.getChannel();
+            final long start = layout.tailOffset < 0 ? channel.size() : layout.tailOffset;
+            final ComparingOutputStream cos = new ComparingOutputStream(channel, start);
+            final DicomOutputStream dos = new DicomOutputStream(new BufferedOutputStream(cos));
+            dos.writeDataset(tail, ts);
+            dos.close();
+            return cos.matchesThrough(channel.size());
+        } catch (IOException e) {
+            throw ioexception = e;
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException e) {
+                throw null == ioexception ? e : ioexception;
+            }
+        }
+    }
+}
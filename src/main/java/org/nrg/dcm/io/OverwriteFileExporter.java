@@ -13,10 +13,11 @@ public final class OverwriteFileExporter
 extends AbstractFileExporter implements DicomObjectExporter {
 
     /**
+     * Files are staged, so an interrupted export never destroys a source file.
      * @param aeTitle
      */
     public OverwriteFileExporter(String aeTitle) {
-	super(aeTitle);
+	super(aeTitle, true);
     }
 
     /* (non-Javadoc)
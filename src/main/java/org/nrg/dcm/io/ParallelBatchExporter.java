@@ -0,0 +1,561 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che2.data.DicomObject;
+import org.nrg.dcm.DicomUtils;
+import org.nrg.dcm.edit.Action;
+import org.nrg.dcm.edit.AttributeException;
+import org.nrg.dcm.edit.Operation;
+import org.nrg.dcm.edit.RemapOperation;
+import org.nrg.dcm.edit.Statement;
+import org.nrg.util.EditProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Exports a batch of files through a pipeline of stages connected by bounded
+ * queues: the calling thread walks the files; a pool of workers reads the files
+ * and applies the statements; and a pool of writers hands the modified objects
+ * to the destination exporter.
+ * With a single worker and a single writer, the batch is run directly by the
+ * calling thread.
+ * The failures from all stages are collected into a single map, as for BatchExporter.
+ * Each file's operations are found from its header, and a file that needs any is
+ * read once, with the operations applied to that object as BatchExporter would.
+ * Files that no operation would change, including files whose selection keys
+ * aren't in a remap table, are handed to a file exporter as unmodified, and
+ * it copies them without decoding the dataset.
+ * Given an EditPlan instead of statements, the workers apply the plan directly.
+ */
+public final class ParallelBatchExporter implements Runnable {
+    private static final long POLL_INTERVAL = 100;    // ms
+    private static final int QUEUE_LENGTH_PER_THREAD = 4;
+    private static final File END = new File("");
+
+    private static final Predicate<File> NOT_TEMP_FILE = new Predicate<File>() {
+        public boolean apply(final File f) {
+            return !AbstractFileExporter.isTempFile(f);
+        }
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(ParallelBatchExporter.class);
+    private final DicomObjectExporter exporter;
+    private final List<Statement> statements;
+    private final EditPlan plan;
+    private final Iterator<File> files;
+    private final Map<Object,Throwable> failures = Collections.synchronizedMap(Maps.<Object,Throwable>newLinkedHashMap());
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final AtomicInteger progress = new AtomicInteger(0);
+    private EditProgressMonitor pm = null;
+    private int progressOffset = 0;
+    private int nworkers = 1, nwriters = 1;
+
+    public ParallelBatchExporter(final DicomObjectExporter exporter, final List<Statement> statements,
+            final Iterator<File> files) {
+        this.exporter = exporter;
+        this.statements = statements;
+        this.plan = null;
+        this.files = Iterators.filter(files, NOT_TEMP_FILE);   // leftovers from an interrupted export
+    }
+
+    public ParallelBatchExporter(final DicomObjectExporter exporter, final EditPlan plan,
+            final Iterable<File> files) {
+        this.exporter = exporter;
+        this.statements = Collections.emptyList();
+        this.plan = plan;
+        this.files = files.iterator();
+    }
+
+    public ParallelBatchExporter(final DicomObjectExporter exporter, final List<Statement> statements,
+            final Iterable<File> files) {
+        this(exporter, statements, files.iterator());
+    }
+
+    /**
+     * Sets the number of threads in each stage.
+     * @param workers number of threads reading files and applying statements
+     * @param writers number of threads writing to the destination exporter; must be
+     *                1 if the exporter is not thread safe
+     * @return this
+     */
+    public ParallelBatchExporter setParallelism(final int workers, final int writers) {
+        this.nworkers = Math.max(1, workers);
+        this.nwriters = Math.max(1, writers);
+        return this;
+    }
+
+    public void setProgressMonitor(final EditProgressMonitor pm, final int offset) {
+        this.pm = pm;
+        this.progressOffset = offset;
+    }
+
+    /**
+     * @return objects that could not be exported, with the cause of each failure
+     */
+    public Map<?,Throwable> getFailures() {
+        synchronized (failures) {
+            return Maps.newLinkedHashMap(failures);
+        }
+    }
+
+    /**
+     * Object with statements applied, waiting to be written.
+     */
+    private static final class Modified {
+        private final DicomObject o;
+        private final File source;
+
+        Modified(final DicomObject o, final File source) {
+            this.o = o;
+            this.source = source;
+        }
+    }
+
+    private static final Modified END_MODIFIED = new Modified(null, END);
+
+    private <T> void put(final BlockingQueue<T> queue, final T item) throws InterruptedException {
+        while (!queue.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (stopped.get()) {
+                throw new InterruptedException("export stopped");
+            }
+        }
+    }
+
+    /**
+     * Worker view of the shared file queue.  The end marker is put back for the
+     * other workers to see.
+     */
+    private final class QueueIterator implements Iterator<File> {
+        private final BlockingQueue<File> queue;
+        private File next = null;
+        private boolean done = false;
+        private boolean exhausted = false;
+
+        QueueIterator(final BlockingQueue<File> queue) {
+            this.queue = queue;
+        }
+
+        public boolean hasNext() {
+            if (null != next) {
+                return true;
+            } else if (done) {
+                return false;
+            }
+            try {
+                File f = null;
+                while (null == f) {
+                    if (stopped.get()) {
+                        done = true;
+                        return false;
+                    }
+                    f = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                if (END == f) {
+                    queue.put(END);
+                    done = exhausted = true;
+                    return false;
+                }
+                next = f;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done = true;
+                return false;
+            }
+        }
+
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final File f = next;
+            next = null;
+            return f;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Worker view of the progress monitor: progress is reported as increments
+     * to the shared count.  The monitor is closed once, after all stages finish.
+     */
+    private final class WorkerProgressMonitor implements EditProgressMonitor {
+        private int last = 0;
+
+        public void setMinimum(final int min) {}
+
+        public void setMaximum(final int max) {}
+
+        public void setProgress(final int current) {
+            final int total = progress.addAndGet(current - last);
+            last = current;
+            pm.setProgress(progressOffset + total);
+        }
+
+        void advance() {
+            pm.setProgress(progressOffset + progress.incrementAndGet());
+        }
+
+        public void setNote(final String note) {
+            pm.setNote(note);
+        }
+
+        public boolean isCanceled() {
+            if (pm.isCanceled()) {
+                stopped.set(true);
+            }
+            return stopped.get();
+        }
+
+        public void close() {}
+    }
+
+    /**
+     * Passes along the files that the plan modifies; other files are handed
+     * to the exporter directly, as null objects.
+     */
+    private final class UnmodifiedFilter implements Iterator<File> {
+        private final Iterator<File> input;
+        private final DicomObjectExporter out;
+        private final WorkerProgressMonitor wpm;
+        private File next = null;
+
+        UnmodifiedFilter(final Iterator<File> input, final DicomObjectExporter out,
+                final WorkerProgressMonitor wpm) {
+            this.input = input;
+            this.out = out;
+            this.wpm = wpm;
+        }
+
+        public boolean hasNext() {
+            while (null == next && input.hasNext()) {
+                if (null != wpm && wpm.isCanceled()) {
+                    return false;
+                }
+                final File f = input.next();
+                if (!plan.modifies(f)) {
+                    try {
+                        out.export(null, f);
+                    } catch (Throwable t) {
+                        logger.debug("unable to export " + f, t);
+                        failures.put(f, t);
+                    }
+                    if (null != wpm) {
+                        wpm.advance();
+                    }
+                } else {
+                    next = f;
+                }
+            }
+            return null != next;
+        }
+
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final File f = next;
+            next = null;
+            return f;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads each of the given files, applies the plan, and exports the result.
+     * @param input files to export
+     * @param out exporter to which the modified objects are written
+     * @param wpm progress monitor (may be null)
+     */
+    private void runPlan(final Iterator<File> input, final DicomObjectExporter out,
+            final WorkerProgressMonitor wpm) {
+        while (input.hasNext()) {
+            if (null != wpm && wpm.isCanceled()) {
+                return;
+            }
+            final File f = input.next();
+            try {
+                final DicomObject o = DicomUtils.read(f);
+                plan.apply(f, o);
+                out.export(o, f);
+            } catch (InterruptedException e) {
+                stopped.set(true);
+                return;
+            } catch (Throwable t) {
+                logger.debug("unable to export " + f, t);
+                failures.put(f, t);
+            }
+            if (null != wpm) {
+                wpm.advance();
+            }
+        }
+    }
+
+    /**
+     * Makes the actions for the operations that would change the object, then
+     * applies them, as BatchExporter does.  A remap whose table has no value for
+     * the object's selection key is skipped.
+     * @param ops operations from the statements that apply to the object
+     * @param o object to be modified
+     * @return true if any action was applied
+     * @throws AttributeException
+     */
+    private static boolean apply(final Collection<?> ops, final DicomObject o) throws AttributeException {
+        final List<Action> actions = Lists.newArrayListWithCapacity(ops.size());
+        for (final Object opo : ops) {
+            final Operation op = (Operation)opo;
+            if (!(op instanceof RemapOperation) || ((RemapOperation)op).hasValue(o)) {
+                actions.add(op.makeAction(o));
+            }
+        }
+        for (final Action action : actions) {
+            action.apply();
+        }
+        return !actions.isEmpty();
+    }
+
+    /**
+     * Finds the operations for each of the given files, and exports the file
+     * with the operations applied.  Statement.getOperations reads only the header
+     * the statements need; a file with operations is then read in full once, and
+     * that object is both checked and modified.
+     * @param input files to export
+     * @param out exporter to which the modified objects are written
+     * @param wpm progress monitor (may be null)
+     */
+    private void runStatements(final Iterator<File> input, final DicomObjectExporter out,
+            final WorkerProgressMonitor wpm) {
+        final boolean copyUnmodified = exporter instanceof AbstractFileExporter;
+        while (input.hasNext()) {
+            if (null != wpm && wpm.isCanceled()) {
+                return;
+            }
+            final File f = input.next();
+            try {
+                final Collection<?> ops = statements.isEmpty()
+                        ? Collections.emptyList() : Statement.getOperations(statements, f);
+                if (ops.isEmpty() && copyUnmodified) {
+                    out.export(null, f);
+                } else {
+                    final DicomObject o = DicomUtils.read(f);
+                    out.export(apply(ops, o) || !copyUnmodified ? o : null, f);
+                }
+            } catch (InterruptedException e) {
+                stopped.set(true);
+                return;
+            } catch (Throwable t) {
+                logger.debug("unable to export " + f, t);
+                failures.put(f, t);
+            }
+            if (null != wpm) {
+                wpm.advance();
+            }
+        }
+    }
+
+    /**
+     * Runs the plan or the statements over the given files.
+     * @param input files to export
+     * @param out exporter to which the modified objects are written
+     */
+    private void runBatch(final Iterator<File> input, final DicomObjectExporter out) {
+        final WorkerProgressMonitor wpm = null == pm ? null : new WorkerProgressMonitor();
+        if (null == plan) {
+            runStatements(input, out, wpm);
+        } else if (exporter instanceof AbstractFileExporter) {
+            runPlan(new UnmodifiedFilter(input, out, wpm), out, wpm);
+        } else {
+            runPlan(input, out, wpm);
+        }
+    }
+
+    /**
+     * Exporter used by the workers: queues each modified object for the writers.
+     */
+    private final class QueueingExporter implements DicomObjectExporter {
+        private final BlockingQueue<Modified> queue;
+
+        QueueingExporter(final BlockingQueue<Modified> queue) {
+            this.queue = queue;
+        }
+
+        public void export(final DicomObject o, final File source) throws InterruptedException {
+            put(queue, new Modified(o, source));
+        }
+
+        public void close() {}
+    }
+
+    private Thread start(final String name, final Runnable r) {
+        final Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void join(final Iterable<Thread> threads) {
+        boolean interrupted = false;
+        for (final Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        if (1 == nworkers && 1 == nwriters) {
+            try {
+                runBatch(files, exporter);
+                if (exporter instanceof AbstractFileExporter) {
+                    commit((AbstractFileExporter)exporter);   // staged files must be committed
+                } else {
+                    close(exporter);
+                }
+            } finally {
+                if (null != pm) {
+                    pm.close();
+                }
+            }
+            return;
+        }
+
+        final BlockingQueue<File> toRead = new ArrayBlockingQueue<File>(QUEUE_LENGTH_PER_THREAD * nworkers);
+        final BlockingQueue<Modified> toWrite = new ArrayBlockingQueue<Modified>(QUEUE_LENGTH_PER_THREAD * nwriters);
+
+        final List<Thread> writers = Lists.newArrayList();
+        for (int i = 0; i < nwriters; i++) {
+            writers.add(start("export-writer-" + i, new Runnable() {
+                public void run() {
+                    try {
+                        for (;;) {
+                            final Modified m = toWrite.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                            if (null == m) {
+                                if (stopped.get()) {
+                                    return;
+                                }
+                            } else if (END_MODIFIED == m) {
+                                toWrite.put(END_MODIFIED);
+                                return;
+                            } else {
+                                try {
+                                    exporter.export(m.o, m.source);
+                                } catch (Throwable t) {
+                                    logger.debug("unable to export " + m.source, t);
+                                    failures.put(m.source, t);
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        stopped.set(true);
+                    }
+                }
+            }));
+        }
+
+        final List<Thread> workers = Lists.newArrayList();
+        for (int i = 0; i < nworkers; i++) {
+            workers.add(start("export-worker-" + i, new Runnable() {
+                public void run() {
+                    final QueueIterator input = new QueueIterator(toRead);
+                    try {
+                        runBatch(input, new QueueingExporter(toWrite));
+                    } catch (RuntimeException e) {
+                        logger.error("export worker failed", e);
+                        stopped.set(true);
+                    } finally {
+                        if (!input.exhausted) {
+                            stopped.set(true);  // canceled or failed: the other stages should stop too
+                        }
+                    }
+                }
+            }));
+        }
+
+        try {
+            while (files.hasNext()) {
+                if (stopped.get()) {
+                    break;
+                }
+                put(toRead, files.next());
+            }
+            put(toRead, END);
+        } catch (InterruptedException e) {
+            stopped.set(true);
+        }
+        join(workers);
+
+        try {
+            put(toWrite, END_MODIFIED);
+        } catch (InterruptedException e) {
+            stopped.set(true);
+        }
+        join(writers);
+
+        if (exporter instanceof AbstractFileExporter) {
+            commit((AbstractFileExporter)exporter);
+        } else {
+            close(exporter);
+        }
+        if (null != pm) {
+            pm.close();
+        }
+    }
+
+    /**
+     * Closes an exporter that isn't a file exporter, such as a C-STORE
+     * exporter that holds an association, logging any failure.
+     */
+    private void close(final DicomObjectExporter out) {
+        try {
+            out.close();
+        } catch (Throwable t) {
+            logger.error("unable to close exporter", t);
+        }
+    }
+
+    /**
+     * Closes a file exporter, committing its staged files, and collects any
+     * files that could not be committed as failures.
+     */
+    private void commit(final AbstractFileExporter fileExporter) {
+        fileExporter.close();
+        failures.putAll(fileExporter.getCommitFailures());
+    }
+}
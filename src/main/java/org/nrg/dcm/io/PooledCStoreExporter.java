@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.net.TransferCapability;
+import org.nrg.dcm.DicomSender;
+import org.nrg.dcm.edit.DicomUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * C-STORE exporter that spreads objects over several associations to the same
+ * remote AE.  Each call to export takes the next idle association, so concurrent
+ * callers (e.g., the writers of a ParallelBatchExporter) keep all associations busy.
+ * If a send fails with an I/O error, the association is dropped and the object
+ * is retried on another association; dropped associations are reopened on their
+ * next use.
+ * Presentation contexts are negotiated lazily: when an object's SOP class and
+ * transfer syntax pair isn't among the transfer capabilities offered so far,
+ * the pair is added to them.  An association is reopened, offering everything
+ * added so far, only when it is about to send an object whose pair it wasn't
+ * opened with; associations keep running for the pairs they already carry.
+ * The initial transfer capabilities may be empty.
+ * All methods are thread safe.
+ */
+public final class PooledCStoreExporter implements DicomObjectExporter {
+    private final Logger logger = LoggerFactory.getLogger(PooledCStoreExporter.class);
+    private final String host, port, remAETitle, locAETitle;
+    private final boolean isTLS;
+    private final Map<String,Set<String>> offered = Maps.newLinkedHashMap();    // SOP class -> TS UIDs
+    private TransferCapability[] tcs;
+    private final List<Association> associations = Lists.newArrayList();
+    private final BlockingQueue<Association> idle;
+
+    /**
+     * One slot in the pool; the sender is (re)built when first used.
+     */
+    private final class Association {
+        private final int index;
+        private DicomSender sender = null;
+        private TransferCapability[] senderTcs = null;  // offered when the sender was opened
+
+        Association(final int index) {
+            this.index = index;
+        }
+
+        /**
+         * Gets a sender that can carry the given SOP class and transfer syntax,
+         * reopening the association if it wasn't opened with that pair.
+         */
+        synchronized DicomSender getSender(final String sopClass, final String tsuid) {
+            if (null != sender && !offers(senderTcs, sopClass, tsuid)) {
+                logger.debug("renegotiating association {} to {}", index, remAETitle);
+                drop();
+            }
+            if (null == sender) {
+                final TransferCapability[] current;
+                synchronized (offered) {
+                    current = tcs;
+                }
+                logger.trace("opening association {} to {}", index, remAETitle);
+                sender = CStoreExporter.buildSender(host, port, isTLS, remAETitle, locAETitle, current);
+                senderTcs = current;
+            }
+            return sender;
+        }
+
+        synchronized void drop() {
+            if (null != sender) {
+                try {
+                    sender.close();
+                } catch (Throwable t) {
+                    logger.debug("error closing association " + index, t);
+                }
+                sender = null;
+            }
+        }
+    }
+
+    public PooledCStoreExporter(final String host, final String port,
+            final boolean isTLS, final String remAETitle, final String locAETitle,
+            final TransferCapability[] tcs, final int nassociations) {
+        this.host = host;
+        this.port = port;
+        this.isTLS = isTLS;
+        this.remAETitle = remAETitle;
+        this.locAETitle = locAETitle;
+        for (final TransferCapability tc : tcs) {
+            if (!offered.containsKey(tc.getSopClass())) {
+                offered.put(tc.getSopClass(), Sets.<String>newLinkedHashSet());
+            }
+            offered.get(tc.getSopClass()).addAll(Arrays.asList(tc.getTransferSyntax()));
+        }
+        this.tcs = tcs;
+        final int n = Math.max(1, nassociations);
+        this.idle = new LinkedBlockingQueue<Association>(n);
+        for (int i = 0; i < n; i++) {
+            final Association a = new Association(i);
+            associations.add(a);
+            idle.add(a);
+        }
+    }
+
+    /**
+     * Adds the given SOP class and transfer syntax to the offered transfer
+     * capabilities, if they aren't there already.
+     * @param sopClass
+     * @param tsuid
+     */
+    private void offer(final String sopClass, final String tsuid) {
+        synchronized (offered) {
+            if (offered.containsKey(sopClass) && offered.get(sopClass).contains(tsuid)) {
+                return;
+            }
+            if (!offered.containsKey(sopClass)) {
+                offered.put(sopClass, Sets.<String>newLinkedHashSet());
+            }
+            offered.get(sopClass).add(tsuid);
+            final List<TransferCapability> updated = Lists.newArrayList();
+            for (final Map.Entry<String,Set<String>> me : offered.entrySet()) {
+                updated.add(new TransferCapability(me.getKey(),
+                        me.getValue().toArray(new String[0]), TransferCapability.SCU));
+            }
+            tcs = updated.toArray(new TransferCapability[0]);
+            logger.debug("offering SOP class {} with transfer syntax {}", sopClass, tsuid);
+        }
+    }
+
+    private static boolean offers(final TransferCapability[] tcs, final String sopClass, final String tsuid) {
+        for (final TransferCapability tc : tcs) {
+            if (tc.getSopClass().equals(sopClass) && Arrays.asList(tc.getTransferSyntax()).contains(tsuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of associations in the pool
+     */
+    public int size() { return associations.size(); }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.io.DicomObjectExporter#export(org.dcm4che2.data.DicomObject, java.io.File)
+     */
+    public void export(final DicomObject o, final File source) throws Exception {
+        final String sopClass = o.getString(Tag.SOPClassUID);
+        final String tsuid = DicomUtils.getTransferSyntaxUID(o);
+        offer(sopClass, tsuid);
+        Exception failure = null;
+        // Try each association at most once, plus one retry on a fresh association.
+        for (int attempt = 0; attempt <= associations.size(); attempt++) {
+            final Association a = idle.take();
+            try {
+                a.getSender(sopClass, tsuid).send(o, tsuid);
+                return;
+            } catch (Exception e) {
+                if (e instanceof IOException) {
+                    logger.info("association " + a.index + " failed sending " + source + "; retrying", e);
+                    a.drop();
+                    failure = e;
+                } else {
+                    throw e;
+                }
+            } finally {
+                idle.put(a);
+            }
+        }
+        throw failure;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.nrg.dcm.io.DicomObjectExporter#close()
+     */
+    public void close() {
+        for (final Association a : associations) {
+            a.drop();
+        }
+    }
+}
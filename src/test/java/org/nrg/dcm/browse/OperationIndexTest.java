@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.browse;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nrg.dcm.edit.Operation;
+
+public class OperationIndexTest {
+    private static final int TAG_1 = 0x00100010;
+    private static final int TAG_2 = 0x00100020;
+    private final File f1 = new File("1.dcm"), f2 = new File("2.dcm"), f3 = new File("3.dcm");
+    private Operation op1, op2;
+    private OperationIndex index;
+
+    @Before
+    public void setUp() {
+        op1 = mock(Operation.class);
+        op2 = mock(Operation.class);
+        index = new OperationIndex();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        assertNull(index.put(TAG_1, f1, op1));
+        assertSame(op1, index.put(TAG_1, f1, op2));
+        assertSame(op2, index.get(TAG_1, f1));
+        assertNull(index.get(TAG_1, f2));
+        assertNull(index.get(TAG_2, f1));
+        assertTrue(index.containsTag(TAG_1));
+
+        assertSame(op2, index.remove(TAG_1, f1));
+        assertNull(index.remove(TAG_1, f1));
+        assertFalse(index.containsTag(TAG_1));
+        assertEquals(0, index.getTags().length);
+    }
+
+    @Test
+    public void testGetTags() {
+        index.put(TAG_2, f1, op1);
+        index.put(TAG_1, f2, op2);
+        assertTrue(Arrays.equals(new int[]{TAG_1, TAG_2}, index.getTags()));
+        assertEquals(Collections.singletonMap(TAG_2, op1), index.getOperations(f1));
+        assertTrue(index.getOperations(f3).isEmpty());
+    }
+
+    @Test
+    public void testSummarize() {
+        final OperationIndex.Selection s12 = index.select(Arrays.asList(f1, f2));
+        assertSame(OperationIndex.Summary.KEEP, index.summarize(TAG_1, s12));
+
+        index.put(TAG_1, f1, op1);
+        assertTrue(index.summarize(TAG_1, s12).isMixed());
+        index.put(TAG_1, f2, op1);
+        assertFalse(index.summarize(TAG_1, s12).isMixed());
+        assertSame(op1, index.summarize(TAG_1, s12).getOperation());
+
+        final OperationIndex.Selection s3 = index.select(Collections.singleton(f3));
+        assertSame(OperationIndex.Summary.KEEP, index.summarize(TAG_1, s3));
+
+        index.put(TAG_1, f2, op2);
+        assertTrue(index.summarize(TAG_1, s12).isMixed());
+        index.remove(TAG_1, f1);
+        index.remove(TAG_1, f2);
+        assertSame(OperationIndex.Summary.KEEP, index.summarize(TAG_1, s12));
+    }
+
+    @Test
+    public void testGetFilesByOperation() {
+        index.put(TAG_1, f1, op1);
+        index.put(TAG_2, f1, op1);
+        index.put(TAG_1, f2, op2);
+        index.put(TAG_1, f3, op1);
+        assertEquals(2, index.getFilesByOperation().get(op1).size());
+        assertEquals(Collections.singleton(f2), index.getFilesByOperation().get(op2));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class CSVSummaryBuilderTest {
+    private static final List<String> PATHS = Arrays.asList("a", "b", "c", "d", "e");
+
+    @Test
+    public void testShards() {
+        assertEquals(Arrays.asList("a", "c", "e"), CSVSummaryBuilder.getShard(PATHS, "0/2"));
+        assertEquals(Arrays.asList("b", "d"), CSVSummaryBuilder.getShard(PATHS, " 1 / 2 "));
+        assertEquals(PATHS, CSVSummaryBuilder.getShard(PATHS, "0/1"));
+        assertEquals(Collections.emptyList(), CSVSummaryBuilder.getShard(PATHS.subList(0, 2), "2/3"));
+    }
+
+    @Test
+    public void testShardsPartitionPaths() {
+        final List<String> all = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            all.addAll(CSVSummaryBuilder.getShard(PATHS, i + "/3"));
+        }
+        Collections.sort(all);
+        assertEquals(PATHS, all);
+    }
+
+    @Test
+    public void testInvalidShards() {
+        for (final String spec : new String[]{"1", "1/2/3", "2/2", "-1/2", "0/0", "a/2", ""}) {
+            try {
+                CSVSummaryBuilder.getShard(PATHS, spec);
+                fail("accepted shard " + spec);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
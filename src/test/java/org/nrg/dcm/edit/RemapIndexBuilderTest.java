@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class RemapIndexBuilderTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("remap-index-test", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (null != files) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String key(final String...values) {
+        return RemapOperation.encodeKey(Arrays.asList(values));
+    }
+
+    @Test
+    public void testSpillAcrossRuns() throws IOException {
+        final RemapIndexBuilder builder = new RemapIndexBuilder(dir, 2, 2);
+        builder.add(0, key("p3", "s1"), "C");
+        builder.add(1, key("x"), "X");
+        builder.add(0, key("p1", "s1"), "A");
+        builder.add(0, key("p2", "s1"), "B");
+        builder.add(1, key("w"), "W");
+        builder.add(0, key("p1", "s2"), "D");
+        builder.add(0, key("p0", "s1"), "E");
+        assertTrue(builder.finish().isEmpty());
+
+        final RemapTable t0 = new MappedRemapTable(builder.getIndexFile(0));
+        assertEquals(5, t0.size());
+        assertEquals("E", t0.get(key("p0", "s1")));
+        assertEquals("A", t0.get(key("p1", "s1")));
+        assertEquals("D", t0.get(key("p1", "s2")));
+        assertEquals("B", t0.get(key("p2", "s1")));
+        assertEquals("C", t0.get(key("p3", "s1")));
+
+        final RemapTable t1 = new MappedRemapTable(builder.getIndexFile(1));
+        assertEquals(2, t1.size());
+        assertEquals("W", t1.get(key("w")));
+        assertEquals("X", t1.get(key("x")));
+
+        // run files and offset files are cleaned up
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void testLookupMisses() throws IOException {
+        final RemapIndexBuilder builder = new RemapIndexBuilder(dir, 2, 3);
+        builder.add(0, key("b"), "B");
+        builder.add(0, key("d"), "D");
+        builder.add(0, key("f"), "F");
+        builder.add(0, key("h"), "H");
+        assertTrue(builder.finish().isEmpty());
+
+        final RemapTable t0 = new MappedRemapTable(builder.getIndexFile(0));
+        assertNull(t0.get(key("a")));   // before the first key
+        assertNull(t0.get(key("c")));   // between keys
+        assertNull(t0.get(key("i")));   // after the last key
+        assertNull(t0.get(key("b", "x")));  // longer key with a matching prefix
+        assertNull(t0.get(""));
+
+        final RemapTable t1 = new MappedRemapTable(builder.getIndexFile(1));
+        assertEquals(0, t1.size());
+        assertNull(t1.get(key("b")));
+    }
+
+    @Test
+    public void testSameValueWithinRun() throws IOException {
+        final RemapIndexBuilder builder = new RemapIndexBuilder(dir, 1);
+        builder.add(0, key("p1"), "A");
+        builder.add(0, key("p2"), "B");
+        builder.add(0, key("p1"), "A");
+        assertTrue(builder.finish().isEmpty());
+
+        final RemapTable t = new MappedRemapTable(builder.getIndexFile(0));
+        assertEquals(2, t.size());
+        assertEquals("A", t.get(key("p1")));
+        assertEquals("B", t.get(key("p2")));
+    }
+
+    @Test
+    public void testSameValueAcrossRuns() throws IOException {
+        final RemapIndexBuilder builder = new RemapIndexBuilder(dir, 1, 1);
+        builder.add(0, key("p1"), "A");
+        builder.add(0, key("p2"), "B");
+        builder.add(0, key("p1"), "A");
+        builder.add(0, key("p1"), "A");
+        assertTrue(builder.finish().isEmpty());
+
+        final RemapTable t = new MappedRemapTable(builder.getIndexFile(0));
+        assertEquals(2, t.size());
+        assertEquals("A", t.get(key("p1")));
+        assertEquals("B", t.get(key("p2")));
+    }
+
+    @Test
+    public void testConflict() throws IOException {
+        final RemapIndexBuilder builder = new RemapIndexBuilder(dir, 2, 2);
+        builder.add(0, key("p1"), "A");
+        builder.add(1, key("p1"), "A");
+        builder.add(0, key("p2"), "B");
+        builder.add(0, key("p1"), "C");
+        final List<RemapIndexBuilder.Conflict> conflicts = builder.finish();
+        assertEquals(1, conflicts.size());
+        final RemapIndexBuilder.Conflict c = conflicts.get(0);
+        assertEquals(0, c.column);
+        assertEquals(key("p1"), c.key);
+        assertEquals(Sets.newHashSet("A", "C"), c.values);
+
+        // the index files are incomplete, so they can't be opened
+        try {
+            new MappedRemapTable(builder.getIndexFile(0));
+            fail("opened incomplete remap index");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
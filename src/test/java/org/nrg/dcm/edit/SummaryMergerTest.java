@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.edit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.dcm4che2.data.Tag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+public class SummaryMergerTest {
+    private File dir;
+    private ConfigurableDirectoryRecordFactory factory;
+    private List<DicomTableEntry> columns;
+    private String[] header;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("summary-merger-test", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+
+        // One row per series, keyed by patient name and ID, study, and series UIDs
+        final File config = new File(dir, "config.xml");
+        final FileWriter writer = new FileWriter(config);
+        try {
+            writer.write("<Columns><Series>(0008,103E)</Series></Columns>");
+        } finally {
+            writer.close();
+        }
+        factory = new ConfigurableDirectoryRecordFactory(config);
+        columns = Lists.newArrayList(factory.getColumns());
+        header = new String[columns.size()];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = columns.get(i).getHeader();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (null != files) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private String[] row(final String patient, final String study, final String series, final String description) {
+        final String[] row = new String[columns.size()];
+        for (int i = 0; i < row.length; i++) {
+            switch (columns.get(i).getTag()) {
+            case Tag.PatientName:
+                row[i] = "Doe^" + patient;
+                break;
+            case Tag.PatientID:
+                row[i] = patient;
+                break;
+            case Tag.StudyInstanceUID:
+                row[i] = study;
+                break;
+            case Tag.SeriesInstanceUID:
+                row[i] = series;
+                break;
+            case Tag.SeriesDescription:
+                row[i] = description;
+                break;
+            default:
+                row[i] = "";
+            }
+        }
+        return row;
+    }
+
+    private File partial(final String name, final String[] header, final String[]...rows) throws IOException {
+        final File f = new File(dir, name);
+        final CSVWriter writer = new CSVWriter(new FileWriter(f));
+        try {
+            writer.writeNext(header);
+            for (final String[] row : rows) {
+                writer.writeNext(row);
+            }
+        } finally {
+            writer.close();
+        }
+        return f;
+    }
+
+    private List<String[]> merge(final File...partials) throws IOException {
+        final StringWriter sw = new StringWriter();
+        final int nrows = new SummaryMerger(factory).run(new CSVWriter(sw), partials);
+        final CSVReader reader = new CSVReader(new StringReader(sw.toString()));
+        try {
+            final List<String[]> rows = Lists.newArrayList(reader.readAll());
+            assertArrayEquals(header, rows.remove(0));
+            assertEquals(nrows, rows.size());
+            return rows;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testDuplicateRowsDropped() throws IOException {
+        final File a = partial("a.csv", header,
+                row("p1", "1.1", "1.1.1", "head"),
+                row("p1", "1.1", "1.1.2", "neck"));
+        final File b = partial("b.csv", header,
+                row("p1", "1.1", "1.1.2", "neck"),
+                row("p2", "1.2", "1.2.1", "knee"));
+        // partials are read in path order, however they are named
+        final List<String[]> rows = merge(b, a);
+        assertEquals(3, rows.size());
+        assertArrayEquals(row("p1", "1.1", "1.1.1", "head"), rows.get(0));
+        assertArrayEquals(row("p1", "1.1", "1.1.2", "neck"), rows.get(1));
+        assertArrayEquals(row("p2", "1.2", "1.2.1", "knee"), rows.get(2));
+    }
+
+    @Test
+    public void testRowsKeyedBySelectionValues() throws IOException {
+        final File a = partial("a.csv", header,
+                row("p1", "1.1", "1.1.1", "head"),
+                row("p1", "1.1", "1.1.2", "head"),     // same description, other series
+                row("p2", "1.1", "1.1.1", "head"));    // same series, other patient
+        final File b = partial("b.csv", header,
+                row("p1", "1.1", "1.1.1", "brain"));   // same series, other description
+        final List<String[]> rows = merge(a, b);
+        assertEquals(3, rows.size());
+        assertArrayEquals(row("p1", "1.1", "1.1.1", "head"), rows.get(0));
+        assertArrayEquals(row("p1", "1.1", "1.1.2", "head"), rows.get(1));
+        assertArrayEquals(row("p2", "1.1", "1.1.1", "head"), rows.get(2));
+    }
+
+    @Test
+    public void testEmptyPartial() throws IOException {
+        final File a = new File(dir, "a.csv");
+        assertTrue(a.createNewFile());
+        final File b = partial("b.csv", header, row("p1", "1.1", "1.1.1", "head"));
+        assertEquals(1, merge(a, b).size());
+    }
+
+    @Test
+    public void testMismatchedColumns() throws IOException {
+        final String[] other = header.clone();
+        other[other.length - 1] = "Something else";
+        final File a = partial("a.csv", header, row("p1", "1.1", "1.1.1", "head"));
+        final File b = partial("b.csv", other, row("p2", "1.2", "1.2.1", "knee"));
+        try {
+            merge(a, b);
+            fail("merged partials with different columns");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
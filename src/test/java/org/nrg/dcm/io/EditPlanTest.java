@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.junit.Before;
+import org.junit.Test;
+import org.nrg.dcm.edit.Action;
+import org.nrg.dcm.edit.Assignment;
+import org.nrg.dcm.edit.Deletion;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+public class EditPlanTest {
+    private final File file = new File("1.dcm"), other = new File("2.dcm");
+    private DicomObject o;
+
+    @Before
+    public void setUp() {
+        o = new BasicDicomObject();
+        o.putString(Tag.PatientName, VR.PN, "Doe^John");
+        o.putString(Tag.PatientID, VR.LO, "12345678");
+        o.putString(Tag.StudyDescription, VR.LO, "head");
+    }
+
+    @Test
+    public void testUnmodified() throws Exception {
+        final EditPlan plan = new EditPlan.Builder()
+        .add(new Deletion(Tag.StudyDescription), Collections.singleton(file)).build();
+        assertFalse(plan.modifies(other));
+        assertFalse(plan.apply(other, o));
+        assertEquals("head", o.getString(Tag.StudyDescription));
+    }
+
+    @Test
+    public void testConstantAssignment() throws Exception {
+        final EditPlan plan = new EditPlan.Builder()
+        .add(new Assignment(Tag.PatientName, "Roe^Jane"), Collections.singleton(file)).build();
+        assertTrue(plan.modifies(file));
+        assertTrue(plan.apply(file, o));
+        assertEquals("Roe^Jane", o.getString(Tag.PatientName));
+        assertEquals(VR.PN, o.get(Tag.PatientName).vr());
+        assertEquals("12345678", o.getString(Tag.PatientID));
+    }
+
+    @Test
+    public void testDeletion() throws Exception {
+        final EditPlan plan = new EditPlan.Builder()
+        .add(new Deletion(Tag.StudyDescription), Collections.singleton(file)).build();
+        assertTrue(plan.apply(file, o));
+        assertFalse(o.contains(Tag.StudyDescription));
+        assertEquals("Doe^John", o.getString(Tag.PatientName));
+    }
+
+    @Test
+    public void testTagReferencingAssignment() throws Exception {
+        // (0010,0010) := (0010,0020): like the mock, it evaluates to null without
+        // attribute values, so it must be applied through its Action.
+        final Assignment copy = mock(Assignment.class);
+        when(copy.getTopTag()).thenReturn(Tag.PatientName);
+        when(copy.getRequiredTags()).thenReturn(ImmutableSortedSet.of(Tag.PatientID));
+        when(copy.makeAction(o)).thenReturn(new Action() {
+            public void apply() {
+                o.putString(Tag.PatientName, VR.PN, o.getString(Tag.PatientID));
+            }
+        });
+
+        final EditPlan plan = new EditPlan.Builder()
+        .add(copy, Collections.singleton(file))
+        .add(new Deletion(Tag.StudyDescription), Collections.singleton(file)).build();
+        assertTrue(plan.apply(file, o));
+        assertEquals("12345678", o.getString(Tag.PatientName));
+        assertFalse(o.contains(Tag.StudyDescription));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012 Washington University
+ */
+package org.nrg.dcm.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InPlacePatcherTest {
+    private static final String SOP_INSTANCE_UID = "1.2.3.4";   // padded to 8 bytes
+    private static final String AE_TITLE = "DicomBrowser";     // as set by the browser's exporters
+    private static final byte[] PIXELS = new byte[32];
+    static {
+        for (int i = 0; i < PIXELS.length; i++) {
+            PIXELS[i] = (byte)i;
+        }
+    }
+
+    private File file;
+    private DicomObject fmi, dataset;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("patch-test", ".dcm");
+        write(null);
+    }
+
+    /**
+     * Writes the test object to the file and reads it back as an exporter would.
+     * @param aeTitle Source Application Entity Title in the file, or null for none
+     */
+    private void write(final String aeTitle) throws IOException {
+        final DicomObject o = new BasicDicomObject();
+        o.putString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        o.putString(Tag.SOPInstanceUID, VR.UI, SOP_INSTANCE_UID);
+        o.putString(Tag.PatientName, VR.PN, "Doe^John");
+        o.putString(Tag.PatientID, VR.LO, "12345678");
+        o.putBytes(Tag.PixelData, VR.OW, PIXELS);
+        o.initFileMetaInformation(UID.SecondaryCaptureImageStorage, SOP_INSTANCE_UID, UID.ExplicitVRLittleEndian);
+        if (null != aeTitle) {
+            o.putString(Tag.SourceApplicationEntityTitle, VR.AE, aeTitle);
+        }
+
+        final DicomOutputStream dos = new DicomOutputStream(file);
+        try {
+            dos.writeDicomFile(o);
+        } finally {
+            dos.close();
+        }
+        contents = Files.readAllBytes(file.toPath());
+
+        // As an exporter would have them: read from the file
+        final DicomObject read = read();
+        fmi = copy(read.fileMetaInfo());
+        dataset = copy(read.dataset());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static DicomObject copy(final DicomObject o) {
+        final DicomObject copy = new BasicDicomObject();
+        o.copyTo(copy);
+        return copy;
+    }
+
+    private DicomObject read() throws IOException {
+        final DicomInputStream dis = new DicomInputStream(file);
+        try {
+            return dis.readDicomObject();
+        } finally {
+            dis.close();
+        }
+    }
+
+    private void assertUnmodified() throws IOException {
+        assertTrue(Arrays.equals(contents, Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * @return a copy of the File Meta Information with our Source Application
+     *  Entity Title, as AbstractFileExporter.export() sets it
+     */
+    private DicomObject exportedFMI() {
+        final DicomObject copy = copy(fmi);
+        copy.putString(Tag.SourceApplicationEntityTitle, VR.AE, AE_TITLE);
+        return copy;
+    }
+
+    @Test
+    public void testUnchanged() throws IOException {
+        assertTrue(InPlacePatcher.patch(file, copy(fmi), copy(dataset)));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testValueFits() throws IOException {
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.PatientID, VR.LO, "ABC");
+        modified.putString(Tag.PatientName, VR.PN, "Roe^Jane");
+        assertTrue(InPlacePatcher.patch(file, copy(fmi), modified));
+
+        assertEquals(contents.length, file.length());
+        final DicomObject o = read();
+        assertEquals("ABC", o.getString(Tag.PatientID));
+        assertEquals("Roe^Jane", o.getString(Tag.PatientName));
+        assertEquals(SOP_INSTANCE_UID, o.getString(Tag.SOPInstanceUID));
+        assertTrue(Arrays.equals(PIXELS, o.getBytes(Tag.PixelData)));
+    }
+
+    @Test
+    public void testValueTooLong() throws IOException {
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.PatientID, VR.LO, "1234567890");
+        assertFalse(InPlacePatcher.patch(file, copy(fmi), modified));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testUIDSameLength() throws IOException {
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.SOPInstanceUID, VR.UI, "1.2.3.5");
+        assertTrue(InPlacePatcher.patch(file, copy(fmi), modified));
+        assertEquals("1.2.3.5", read().getString(Tag.SOPInstanceUID));
+    }
+
+    @Test
+    public void testUIDShorter() throws IOException {
+        // UIDs can't be padded with spaces, so only an exact fit is patched.
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.SOPInstanceUID, VR.UI, "1.2.3");
+        assertFalse(InPlacePatcher.patch(file, copy(fmi), modified));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testVRMismatch() throws IOException {
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.PatientID, VR.SH, "ABC");
+        assertFalse(InPlacePatcher.patch(file, copy(fmi), modified));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testTailMismatch() throws IOException {
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.PatientID, VR.LO, "ABC");
+        final byte[] pixels = PIXELS.clone();
+        pixels[0] ^= 0xff;
+        modified.putBytes(Tag.PixelData, VR.OW, pixels);
+        assertFalse(InPlacePatcher.patch(file, copy(fmi), modified));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testSourceAETitleAdded() throws IOException {
+        // No (0002,0016) in the file, so setting it means a full rewrite.
+        assertFalse(InPlacePatcher.patch(file, exportedFMI(), null));
+        assertUnmodified();
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.PatientID, VR.LO, "ABC");
+        assertFalse(InPlacePatcher.patch(file, exportedFMI(), modified));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testSourceAETitleReplaced() throws IOException {
+        write("SOME_OTHER_SCU");
+        assertTrue(InPlacePatcher.patch(file, exportedFMI(), null));
+        assertEquals(contents.length, file.length());
+        DicomObject o = read();
+        assertEquals(AE_TITLE, o.getString(Tag.SourceApplicationEntityTitle));
+        assertEquals("Doe^John", o.getString(Tag.PatientName));
+
+        final DicomObject modified = copy(dataset);
+        modified.putString(Tag.PatientID, VR.LO, "ABC");
+        assertTrue(InPlacePatcher.patch(file, exportedFMI(), modified));
+        assertEquals(contents.length, file.length());
+        o = read();
+        assertEquals(AE_TITLE, o.getString(Tag.SourceApplicationEntityTitle));
+        assertEquals("ABC", o.getString(Tag.PatientID));
+        assertTrue(Arrays.equals(PIXELS, o.getBytes(Tag.PixelData)));
+    }
+
+    @Test
+    public void testSourceAETitleSame() throws IOException {
+        write(AE_TITLE);
+        assertTrue(InPlacePatcher.patch(file, exportedFMI(), null));
+        assertUnmodified();
+    }
+
+    @Test
+    public void testSourceAETitleTooShort() throws IOException {
+        // The existing title has no room for ours, so the file must be rewritten.
+        write("SCU");
+        assertFalse(InPlacePatcher.patch(file, exportedFMI(), null));
+        assertUnmodified();
+    }
+}